@@ -0,0 +1,254 @@
+package info.rusty.webshoplink;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.IntArrayTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.inventory.InventoryMenu;
+import net.minecraft.world.inventory.PlayerEnderChestContainer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.enchantment.Enchantments;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Realistic inventory contents for the benchmarks.
+ * Every corpus is generated from a fixed seed, so runs before and after a change measure the same data.
+ */
+public class BenchmarkCorpus {
+    private static final int INVENTORY_SIZE = 41;
+    private static final long SEED = 0x5EED_5EEDL;
+    private static boolean bootstrapped;
+
+    /**
+     * The available corpora
+     */
+    public enum Kind {
+        VANILLA,    // Plain stacks, tools with damage values
+        ENCHANTED,  // Enchanted and renamed gear with repair costs
+        BOOKS,      // Written books with many pages of JSON text
+        MODDED      // Deeply nested NBT as stored by mods, plus filled shulker boxes
+    }
+
+    /**
+     * Bootstraps the vanilla registries, so items can be created without a running server
+     */
+    public static synchronized void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        Config.debugEnabled = false;
+        Config.debugVerbosity = Config.DebugVerbosity.MINIMAL;
+        bootstrapped = true;
+    }
+
+    /**
+     * Creates the contents of a full player inventory
+     * @param kind The corpus to generate
+     * @return One stack per inventory slot, none of them empty
+     */
+    public static ItemStack[] createStacks(Kind kind) {
+        bootstrap();
+        Random random = new Random(SEED + kind.ordinal());
+        ItemStack[] stacks = new ItemStack[INVENTORY_SIZE];
+        for (int i = 0; i < INVENTORY_SIZE; i++) {
+            stacks[i] = switch (kind) {
+                case VANILLA -> createVanillaStack(random, i);
+                case ENCHANTED -> createEnchantedStack(random, i);
+                case BOOKS -> createBook(random, i);
+                case MODDED -> i % 4 == 0 ? createShulkerBox(random) : createModdedStack(random, 6);
+            };
+        }
+        return stacks;
+    }
+
+    /**
+     * Creates an inventory filled with a corpus
+     * @param kind The corpus to generate
+     * @return A player inventory without an owner
+     */
+    public static Inventory createInventory(Kind kind) {
+        Inventory inventory = new Inventory(null);
+        ItemStack[] stacks = createStacks(kind);
+        for (int i = 0; i < stacks.length && i < inventory.getContainerSize(); i++) {
+            inventory.setItem(i, stacks[i]);
+        }
+        return inventory;
+    }
+
+    /**
+     * Creates a server player that only has an inventory, an ender chest and an inventory menu.
+     * The player is allocated without running its constructor, so no level or connection is needed.
+     * @param inventoryStacks The inventory contents, null entries are left empty
+     * @param echestStacks The ender chest contents, null entries are left empty
+     * @return The player
+     */
+    public static ServerPlayer createPlayer(ItemStack[] inventoryStacks, ItemStack[] echestStacks) {
+        return createPlayer(ServerPlayer.class, UUID.nameUUIDFromBytes(new byte[0]), "Benchmark", inventoryStacks, echestStacks);
+    }
+
+    /**
+     * Creates a player of a subclass of {@link ServerPlayer}, see {@link #createPlayer(ItemStack[], ItemStack[])}
+     * @param type The player class to allocate
+     * @param id The player UUID
+     * @param name The player name
+     * @param inventoryStacks The inventory contents, null entries are left empty
+     * @param echestStacks The ender chest contents, null entries are left empty
+     * @return The player
+     */
+    public static <T extends ServerPlayer> T createPlayer(Class<T> type, UUID id, String name, ItemStack[] inventoryStacks, ItemStack[] echestStacks) {
+        bootstrap();
+        try {
+            T player = allocate(type);
+
+            Inventory inventory = new Inventory(player);
+            PlayerEnderChestContainer echest = new PlayerEnderChestContainer();
+            InventoryMenu inventoryMenu = new InventoryMenu(inventory, false, player);
+            setField(Entity.class, player, "uuid", id);
+            setField(Entity.class, player, "stringUUID", id.toString());
+            setField(Player.class, player, "gameProfile", new GameProfile(id, name));
+            setField(Player.class, player, "inventory", inventory);
+            setField(Player.class, player, "enderChestInventory", echest);
+            setField(Player.class, player, "inventoryMenu", inventoryMenu);
+            setField(Player.class, player, "containerMenu", inventoryMenu);
+
+            for (int i = 0; i < inventoryStacks.length && i < inventory.getContainerSize(); i++) {
+                if (inventoryStacks[i] != null) {
+                    inventory.setItem(i, inventoryStacks[i].copy());
+                }
+            }
+            for (int i = 0; i < echestStacks.length && i < echest.getContainerSize(); i++) {
+                if (echestStacks[i] != null) {
+                    echest.setItem(i, echestStacks[i].copy());
+                }
+            }
+            return player;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create benchmark player", e);
+        }
+    }
+
+    /**
+     * Allocates an instance without running any constructor
+     */
+    public static <T> T allocate(Class<T> type) throws ReflectiveOperationException {
+        Field unsafeField = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        sun.misc.Unsafe unsafe = (sun.misc.Unsafe) unsafeField.get(null);
+        return type.cast(unsafe.allocateInstance(type));
+    }
+
+    /**
+     * Sets a field declared by a class, regardless of its visibility
+     */
+    public static void setField(Class<?> owner, Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static ItemStack createVanillaStack(Random random, int slot) {
+        return switch (slot % 6) {
+            case 0 -> new ItemStack(Items.COBBLESTONE, 1 + random.nextInt(64));
+            case 1 -> new ItemStack(Items.OAK_LOG, 1 + random.nextInt(64));
+            case 2 -> new ItemStack(Items.BREAD, 1 + random.nextInt(64));
+            case 3 -> new ItemStack(Items.IRON_INGOT, 1 + random.nextInt(64));
+            case 4 -> new ItemStack(Items.TORCH, 1 + random.nextInt(64));
+            default -> {
+                ItemStack pickaxe = new ItemStack(Items.IRON_PICKAXE);
+                pickaxe.setDamageValue(random.nextInt(250));
+                yield pickaxe;
+            }
+        };
+    }
+
+    private static ItemStack createEnchantedStack(Random random, int slot) {
+        ItemStack stack = switch (slot % 4) {
+            case 0 -> new ItemStack(Items.DIAMOND_SWORD);
+            case 1 -> new ItemStack(Items.NETHERITE_PICKAXE);
+            case 2 -> new ItemStack(Items.DIAMOND_CHESTPLATE);
+            default -> new ItemStack(Items.BOW);
+        };
+        stack.enchant(Enchantments.UNBREAKING, 3);
+        stack.enchant(Enchantments.MENDING, 1);
+        stack.enchant(Enchantments.SHARPNESS, 1 + random.nextInt(5));
+        stack.enchant(Enchantments.ALL_DAMAGE_PROTECTION, 1 + random.nextInt(4));
+        stack.setHoverName(Component.literal("Relic #" + random.nextInt(10000)));
+        stack.setRepairCost(random.nextInt(40));
+        stack.setDamageValue(random.nextInt(100));
+        return stack;
+    }
+
+    private static ItemStack createBook(Random random, int slot) {
+        ItemStack book = new ItemStack(Items.WRITTEN_BOOK);
+        CompoundTag tag = book.getOrCreateTag();
+        tag.putString("title", "Ledger " + slot);
+        tag.putString("author", "Player" + random.nextInt(1000));
+        tag.putInt("generation", random.nextInt(3));
+        ListTag pages = new ListTag();
+        for (int page = 0; page < 50; page++) {
+            StringBuilder text = new StringBuilder();
+            for (int word = 0; word < 40; word++) {
+                text.append("word").append(random.nextInt(1000)).append(' ');
+            }
+            pages.add(StringTag.valueOf(Component.Serializer.toJson(Component.literal(text.toString()))));
+        }
+        tag.put("pages", pages);
+        return book;
+    }
+
+    private static ItemStack createModdedStack(Random random, int depth) {
+        ItemStack stack = new ItemStack(Items.CHEST);
+        CompoundTag forgeCaps = new CompoundTag();
+        forgeCaps.put("examplemod:storage", createNestedTag(random, depth));
+        forgeCaps.putLong("examplemod:energy", random.nextLong());
+        forgeCaps.put("examplemod:owner", new IntArrayTag(new int[] {random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt()}));
+        stack.getOrCreateTag().put("ForgeCaps", forgeCaps);
+        return stack;
+    }
+
+    private static CompoundTag createNestedTag(Random random, int depth) {
+        CompoundTag tag = new CompoundTag();
+        tag.putString("id", "examplemod:node_" + random.nextInt(100));
+        tag.putInt("level", depth);
+        tag.putFloat("progress", random.nextFloat());
+        tag.putDouble("charge", random.nextDouble() * 1000);
+        tag.putByte("mode", (byte) random.nextInt(4));
+        if (depth > 0) {
+            ListTag children = new ListTag();
+            for (int i = 0; i < 2; i++) {
+                children.add(createNestedTag(random, depth - 1));
+            }
+            tag.put("children", children);
+        }
+        return tag;
+    }
+
+    private static ItemStack createShulkerBox(Random random) {
+        ItemStack box = new ItemStack(Items.SHULKER_BOX);
+        ListTag items = new ListTag();
+        for (int slot = 0; slot < 27; slot++) {
+            ItemStack content = createEnchantedStack(random, slot);
+            CompoundTag itemTag = content.save(new CompoundTag());
+            itemTag.putByte("Slot", (byte) slot);
+            items.add(itemTag);
+        }
+        CompoundTag blockEntityTag = new CompoundTag();
+        blockEntityTag.put("Items", items);
+        box.getOrCreateTag().put("BlockEntityTag", blockEntityTag);
+        return box;
+    }
+}
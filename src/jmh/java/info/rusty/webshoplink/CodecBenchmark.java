@@ -0,0 +1,91 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.JsonObject;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.item.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Benchmarks the conversion between game items and the API data format.
+ * All benchmarks process a whole inventory per operation, so the results are per inventory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"VANILLA", "ENCHANTED", "BOOKS", "MODDED"})
+    public BenchmarkCorpus.Kind corpus;
+
+    private Inventory inventory;
+    private List<CompoundTag> tags;
+    private List<JsonObject> jsonTags;
+    private List<ItemData> items;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        inventory = BenchmarkCorpus.createInventory(corpus);
+
+        tags = new ArrayList<>();
+        jsonTags = new ArrayList<>();
+        for (ItemStack stack : BenchmarkCorpus.createStacks(corpus)) {
+            if (stack.hasTag()) {
+                tags.add(stack.getTag());
+                jsonTags.add((JsonObject) NbtSerializer.serializeNbt(stack.getTag()));
+            }
+        }
+
+        InventoryList inventories = new InventoryList();
+        inventories.setInventoryFromPlayer(inventory);
+        items = new ArrayList<>(inventories.getInventoryData().getItems().values());
+    }
+
+    @Benchmark
+    public void serializeNbt(Blackhole blackhole) {
+        for (CompoundTag tag : tags) {
+            blackhole.consume(NbtSerializer.serializeNbt(tag));
+        }
+    }
+
+    @Benchmark
+    public void parseJsonToCompoundTag(Blackhole blackhole) {
+        for (JsonObject json : jsonTags) {
+            blackhole.consume(NbtSerializer.CompoundTagAdapter.parseJsonToCompoundTag(json));
+        }
+    }
+
+    @Benchmark
+    public InventoryList setInventoryFromPlayer() {
+        InventoryList inventories = new InventoryList();
+        inventories.setInventoryFromPlayer(inventory);
+        return inventories;
+    }
+
+    @Benchmark
+    public void getItemStackData(Blackhole blackhole) {
+        for (ItemData item : items) {
+            blackhole.consume(item.getItemStackData());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package info.rusty.webshoplink;
+
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.enchantment.Enchantments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Benchmarks the inventory paths that run on the server thread when a player confirms a purchase.
+ * Each purchase changes a few slots of the inventory and the ender chest, like a typical shop visit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryBenchmark {
+    /**
+     * How the player's containers are filled
+     */
+    public enum Layout {
+        FULL,       // Every slot holds a plain stack
+        SPARSE,     // Every fifth slot holds a plain stack
+        NBT_HEAVY   // Every slot holds deeply nested NBT or a filled shulker box
+    }
+
+    @Param({"FULL", "SPARSE", "NBT_HEAVY"})
+    public Layout layout;
+
+    @Param({"1", "3"})
+    public int changedSlots;
+
+    private ServerPlayer player;
+    private InventorySnapshot snapshot;
+    private InventorySnapshot currentSnapshot;
+    private InventoryData originalInventory;
+    private ContainerData originalEchest;
+    private InventoryData purchasedInventory;
+    private ContainerData purchasedEchest;
+    private boolean inventoryPurchased;
+    private boolean echestPurchased;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ItemStack[] stacks = createLayout(layout);
+        ItemStack[] echestStacks = createLayout(layout);
+        player = BenchmarkCorpus.createPlayer(stacks, echestStacks);
+        snapshot = InventoryManager.captureInventory(player);
+        currentSnapshot = InventoryManager.captureInventory(player);
+
+        InventoryList original = new InventoryList();
+        original.setInventoryFromPlayer(player.getInventory());
+        original.setEchestFromPlayer(player.getEnderChestInventory());
+        originalInventory = original.getInventoryData();
+        originalEchest = original.getEnderChestData();
+
+        // Serialize the purchased state from a second player with the changed slots
+        purchase(stacks, changedSlots);
+        purchase(echestStacks, changedSlots);
+        ServerPlayer purchasedPlayer = BenchmarkCorpus.createPlayer(stacks, echestStacks);
+        InventoryList purchased = new InventoryList();
+        purchased.setInventoryFromPlayer(purchasedPlayer.getInventory());
+        purchased.setEchestFromPlayer(purchasedPlayer.getEnderChestInventory());
+        purchasedInventory = purchased.getInventoryData();
+        purchasedEchest = purchased.getEnderChestData();
+    }
+
+    @Benchmark
+    public InventorySnapshot captureInventory() {
+        return InventoryManager.captureInventory(player);
+    }
+
+    @Benchmark
+    public boolean inventoriesMatch() {
+        return InventoryManager.inventoriesMatch(snapshot, currentSnapshot);
+    }
+
+    @Benchmark
+    public InventoryMerge mergeInventories() {
+        return InventoryManager.mergeInventories(snapshot, currentSnapshot, purchasedInventory, purchasedEchest, InventoryFilter.ALL);
+    }
+
+    @Benchmark
+    public InventoryDiff generateInventoryDiff() {
+        return InventoryManager.generateInventoryDiff(snapshot, purchasedInventory, purchasedEchest);
+    }
+
+    // Alternates between the purchased and the original state, so every call writes the changed slots
+    @Benchmark
+    public boolean applyNewInventory() {
+        inventoryPurchased = !inventoryPurchased;
+        return InventoryManager.applyNewInventory(player, inventoryPurchased ? purchasedInventory : originalInventory);
+    }
+
+    @Benchmark
+    public boolean applyNewEchest() {
+        echestPurchased = !echestPurchased;
+        return InventoryManager.applyNewEchest(player, echestPurchased ? purchasedEchest : originalEchest);
+    }
+
+    private static ItemStack[] createLayout(Layout layout) {
+        ItemStack[] stacks = BenchmarkCorpus.createStacks(layout == Layout.NBT_HEAVY ? BenchmarkCorpus.Kind.MODDED : BenchmarkCorpus.Kind.VANILLA);
+        if (layout == Layout.SPARSE) {
+            for (int i = 0; i < stacks.length; i++) {
+                if (i % 5 != 0) {
+                    stacks[i] = null;
+                }
+            }
+        }
+        return stacks;
+    }
+
+    // Pays with the first slot, adds a bought item and takes a sold item, in that order
+    private static void purchase(ItemStack[] stacks, int changedSlots) {
+        stacks[0] = new ItemStack(Items.EMERALD, 7);
+        if (changedSlots >= 2) {
+            ItemStack sword = new ItemStack(Items.DIAMOND_SWORD);
+            sword.enchant(Enchantments.SHARPNESS, 5);
+            stacks[11] = sword;
+        }
+        if (changedSlots >= 3) {
+            stacks[20] = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package info.rusty.webshoplink;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.util.function.Consumer;
+
+/**
+ * A synthetic player whose chat messages go to a listener instead of a network connection.
+ * Instances are created by {@link BenchmarkCorpus#createPlayer} without running the constructor.
+ */
+public class LoadTestPlayer extends ServerPlayer {
+    private volatile Consumer<Component> messageListener;
+
+    private LoadTestPlayer(MinecraftServer server, ServerLevel level, GameProfile profile) {
+        super(server, level, profile);
+    }
+
+    public void setMessageListener(Consumer<Component> messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    @Override
+    public void sendSystemMessage(Component component, boolean overlay) {
+        Consumer<Component> listener = messageListener;
+        if (listener != null) {
+            listener.accept(component);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package info.rusty.webshoplink;
+
+import com.mojang.datafixers.DataFixer;
+import net.minecraft.server.Services;
+import net.minecraft.server.WorldStem;
+import net.minecraft.server.dedicated.DedicatedServer;
+import net.minecraft.server.dedicated.DedicatedServerSettings;
+import net.minecraft.server.level.progress.ChunkProgressListenerFactory;
+import net.minecraft.server.packs.repository.PackRepository;
+import net.minecraft.world.level.storage.LevelStorageSource;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A server that only acts as the executor for server thread tasks.
+ * Instances are allocated without running the constructor, so nothing but {@link #execute} may be used.
+ */
+public class LoadTestServer extends DedicatedServer {
+    private volatile Executor serverThread;
+
+    private LoadTestServer(Thread thread, LevelStorageSource.LevelStorageAccess storage, PackRepository packs, WorldStem worldStem,
+                           DedicatedServerSettings settings, DataFixer dataFixer, Services services, ChunkProgressListenerFactory progressListenerFactory) {
+        super(thread, storage, packs, worldStem, settings, dataFixer, services, progressListenerFactory);
+    }
+
+    public void setServerThread(Executor serverThread) {
+        this.serverThread = serverThread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        serverThread.execute(task);
+    }
+}
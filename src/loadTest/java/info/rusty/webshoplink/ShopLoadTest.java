@@ -0,0 +1,451 @@
+package info.rusty.webshoplink;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSource;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.ClickEvent;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.phys.Vec2;
+import net.minecraft.world.phys.Vec3;
+import net.minecraftforge.event.RegisterCommandsEvent;
+import net.minecraftforge.event.TickEvent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test of the full /shop, /shopFinish and /confirmFinish flow.
+ *
+ * Synthetic players run the real commands through a command dispatcher against a {@link StubShopServer},
+ * and read the results from the chat messages they receive, like a player clicking through the shop would.
+ * All commands and server tasks run on a single simulated server thread that ticks at 20 TPS.
+ *
+ * Options are given as {@code --name value} pairs, see {@link #main} for the defaults.
+ */
+public class ShopLoadTest {
+    private static final String FOOTER = "=".repeat(50);
+    private static final String SUCCESS_MESSAGE = "Purchase completed successfully!";
+
+    /**
+     * The steps of a shop visit
+     */
+    enum Step {
+        SHOP,
+        FINISH,
+        CONFIRM
+    }
+
+    /**
+     * A failed step, with the reason shown to the player or observed by the harness
+     */
+    private static class StepFailure extends RuntimeException {
+        private final Step step;
+
+        StepFailure(Step step, String reason) {
+            super(reason, null, false, false);
+            this.step = step;
+        }
+    }
+
+    private final int players;
+    private final int rounds;
+    private final long rampUpMillis;
+    private final long thinkMillis;
+    private final long timeoutSeconds;
+    private final double abandonRate;
+    private final double maxErrorRate;
+    private final boolean twoPhase;
+    private final boolean batch;
+    private final boolean compress;
+    private final BenchmarkCorpus.Kind corpus;
+    private final Path metricsFile;
+    private final StubShopServer stub;
+
+    private final ExecutorService serverThread = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "Server thread"));
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "LoadTest-Scheduler"));
+    private final CommandDispatcher<CommandSourceStack> dispatcher = new CommandDispatcher<>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private LoadTestServer server;
+
+    private final Map<Step, ShopMetrics.LatencyHistogram> latencies = new EnumMap<>(Step.class);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder completedFlows = new LongAdder();
+    private final LongAdder abandonedFlows = new LongAdder();
+    private final LongAdder failedFlows = new LongAdder();
+    private volatile int peakActiveProcesses;
+    private volatile long peakHeapBytes;
+
+    public ShopLoadTest(Map<String, String> options) throws Exception {
+        players = Integer.parseInt(options.getOrDefault("players", "1000"));
+        rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+        rampUpMillis = Long.parseLong(options.getOrDefault("ramp-up-ms", "10000"));
+        thinkMillis = Long.parseLong(options.getOrDefault("think-ms", "500"));
+        timeoutSeconds = Long.parseLong(options.getOrDefault("timeout-s", "30"));
+        abandonRate = Double.parseDouble(options.getOrDefault("abandon-rate", "0.1"));
+        maxErrorRate = Double.parseDouble(options.getOrDefault("max-error-rate", "1.0"));
+        twoPhase = Boolean.parseBoolean(options.getOrDefault("two-phase", "false"));
+        batch = Boolean.parseBoolean(options.getOrDefault("batch", "false"));
+        compress = Boolean.parseBoolean(options.getOrDefault("compress", "false"));
+        corpus = BenchmarkCorpus.Kind.valueOf(options.getOrDefault("corpus", "VANILLA"));
+        metricsFile = Path.of(options.getOrDefault("metrics", "build/reports/loadtest/metrics.prom"));
+        stub = new StubShopServer(
+                Long.parseLong(options.getOrDefault("latency-ms", "50")),
+                Long.parseLong(options.getOrDefault("jitter-ms", "50")),
+                Double.parseDouble(options.getOrDefault("failure-rate", "0.02")),
+                Double.parseDouble(options.getOrDefault("drop-rate", "0.01")));
+        for (Step step : Step.values()) {
+            latencies.put(step, new ShopMetrics.LatencyHistogram());
+        }
+    }
+
+    /**
+     * Runs the load test.
+     * Options: --players 1000, --rounds 3, --ramp-up-ms 10000, --think-ms 500, --timeout-s 30,
+     * --abandon-rate 0.1, --latency-ms 50, --jitter-ms 50, --failure-rate 0.02, --drop-rate 0.01,
+     * --corpus VANILLA, --metrics build/reports/loadtest/metrics.prom, --max-error-rate 1.0, --two-phase false,
+     * --batch false, --compress false
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option name, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        System.exit(new ShopLoadTest(options).run() ? 0 : 1);
+    }
+
+    /**
+     * @return true if the error rate stayed below the configured maximum
+     */
+    public boolean run() throws Exception {
+        setUp();
+        List<Shopper> shoppers = new ArrayList<>(players);
+        ItemStack[] stacks = BenchmarkCorpus.createStacks(corpus);
+        for (int i = 0; i < players; i++) {
+            shoppers.add(new Shopper(i, stacks));
+        }
+
+        long heapBefore = usedHeapAfterGc();
+        long start = System.nanoTime();
+        scheduler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(() -> printProgress(start), 5, 5, TimeUnit.SECONDS);
+
+        List<CompletableFuture<Void>> visits = new ArrayList<>(players);
+        for (int i = 0; i < players; i++) {
+            Shopper shopper = shoppers.get(i);
+            CompletableFuture<Void> visit = delay(rampUpMillis * i / Math.max(1, players));
+            for (int round = 0; round < rounds; round++) {
+                visit = visit.thenCompose(ignored -> runVisit(shopper));
+            }
+            visits.add(visit);
+        }
+        CompletableFuture.allOf(visits.toArray(new CompletableFuture[0])).join();
+        long elapsedNanos = System.nanoTime() - start;
+
+        // Let late responses of timed out steps settle before measuring what is left behind
+        Thread.sleep(1000);
+        sample();
+        long heapAfter = usedHeapAfterGc();
+        boolean passed = report(elapsedNanos, heapBefore, heapAfter);
+
+        scheduler.shutdownNow();
+        InitiateBatcher.stop();
+        NotificationBatcher.stop();
+        serverThread.shutdownNow();
+        stub.stop();
+        return passed;
+    }
+
+    private void setUp() throws Exception {
+        BenchmarkCorpus.bootstrap();
+        stub.start();
+        Config.apiBaseUrl = stub.getBaseUrl();
+        Config.apiBackends = List.of();
+        Config.apiBalancing = Config.Balancing.ROUND_ROBIN;
+        Config.shopRoutes = Map.of();
+        Config.backendEjectFailures = 3;
+        Config.backendEjectTime = 30;
+        Config.shopEndpoint = "/initiate";
+        Config.shopReserveEndpoint = twoPhase ? "/reserve" : "";
+        Config.shopInventoryEndpoint = "/{uuid}/inventory";
+        Config.shopCancelEndpoint = "/{uuid}/cancel";
+        Config.shopCheckoutEndpoint = "/{uuid}/checkout";
+        Config.shopAppliedEndpoint = "/{uuid}/setApplied";
+        Config.shopBatchInitiateEndpoint = batch ? "/initiate/batch" : "";
+        Config.initiateBatchWindow = 5;
+        Config.initiateBatchMaxSize = 32;
+        Config.shopBatchCancelEndpoint = batch ? "/cancel/batch" : "";
+        Config.shopBatchAppliedEndpoint = batch ? "/setApplied/batch" : "";
+        Config.notificationBatchInterval = 100;
+        Config.notificationBatchMaxSize = 100;
+        Config.compressRequests = compress;
+        Config.compressMinSize = 4096;
+        Config.acceptCompressedResponses = compress;
+        Config.maxResponseBytes = 16 * 1024 * 1024;
+        Config.maxResponseDepth = 128;
+        Config.maxResponseElements = 1_000_000;
+        Config.tickBudgetWarning = 10.0;
+        Config.endpoints = Config.compileEndpoints();
+        BackendRouter.configure();
+        InitiateBatcher.start();
+        NotificationBatcher.start();
+
+        server = BenchmarkCorpus.allocate(LoadTestServer.class);
+        server.setServerThread(serverThread);
+        ShopCommands.registerCommands(new RegisterCommandsEvent(dispatcher, Commands.CommandSelection.DEDICATED, null));
+
+        // Tick the simulated server thread at 20 TPS, so the tick profiler sees the same picture as on a real server
+        serverThread.execute(() -> TickProfiler.onServerTick(new TickEvent.ServerTickEvent(TickEvent.Phase.START, () -> true, server)));
+        scheduler.scheduleAtFixedRate(() -> serverThread.execute(() -> {
+            TickProfiler.onServerTick(new TickEvent.ServerTickEvent(TickEvent.Phase.END, () -> true, server));
+            TickProfiler.onServerTick(new TickEvent.ServerTickEvent(TickEvent.Phase.START, () -> true, server));
+        }), 50, 50, TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Void> runVisit(Shopper shopper) {
+        return shopper.run(Step.SHOP, "shop loadtest")
+            .thenCompose(processId -> {
+                if (ThreadLocalRandom.current().nextDouble() < abandonRate) {
+                    // The player closes the browser and never comes back, the process stays open until their next /shop
+                    abandonedFlows.increment();
+                    return CompletableFuture.completedFuture(null);
+                }
+                return think()
+                    .thenCompose(ignored -> shopper.run(Step.FINISH, "shopFinish " + processId))
+                    .thenCompose(confirmId -> think().thenCompose(ignored -> shopper.run(Step.CONFIRM, "confirmFinish " + confirmId)))
+                    .thenAccept(ignored -> completedFlows.increment());
+            })
+            .handle((ignored, error) -> {
+                if (error != null) {
+                    failedFlows.increment();
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    String key = cause instanceof StepFailure failure
+                            ? failure.step + ": " + failure.getMessage()
+                            : "harness: " + cause;
+                    errors.computeIfAbsent(key, name -> new LongAdder()).increment();
+                }
+                return null;
+            });
+    }
+
+    private CompletableFuture<Void> think() {
+        long millis = (long) (thinkMillis * (0.5 + ThreadLocalRandom.current().nextDouble()));
+        return delay(millis);
+    }
+
+    private static CompletableFuture<Void> delay(long millis) {
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+
+    private void sample() {
+        peakActiveProcesses = Math.max(peakActiveProcesses, ShopCommands.getActiveShopProcessCount());
+        peakHeapBytes = Math.max(peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    private void printProgress(long start) {
+        System.out.printf("[%4ds] completed=%d abandoned=%d failed=%d active=%d heap=%.1f MB%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                completedFlows.sum(), abandonedFlows.sum(), failedFlows.sum(),
+                ShopCommands.getActiveShopProcessCount(), memory.getHeapMemoryUsage().getUsed() / 1048576.0);
+    }
+
+    private long usedHeapAfterGc() {
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private boolean report(long elapsedNanos, long heapBefore, long heapAfter) throws Exception {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        long visits = (long) players * rounds;
+        double errorRate = visits == 0 ? 0 : failedFlows.sum() / (double) visits;
+
+        System.out.println();
+        System.out.println("==================== Load Test ====================");
+        System.out.printf("players=%d rounds=%d duration=%.1fs%n", players, rounds, seconds);
+        System.out.printf("visits: completed=%d abandoned=%d failed=%d (%.2f%%)%n",
+                completedFlows.sum(), abandonedFlows.sum(), failedFlows.sum(), errorRate * 100);
+        System.out.printf("throughput: %.1f purchases/s%n", completedFlows.sum() / seconds);
+
+        System.out.println("step latency, player view: count | p50 / p99 / p999 / max (ms)");
+        for (Step step : Step.values()) {
+            ShopMetrics.LatencyHistogram histogram = latencies.get(step);
+            System.out.printf("  %-8s %d | %.1f / %.1f / %.1f / %.1f%n", step.name().toLowerCase(), histogram.getCount(),
+                    histogram.getValueAtPercentile(0.5) / 1_000_000.0,
+                    histogram.getValueAtPercentile(0.99) / 1_000_000.0,
+                    histogram.getValueAtPercentile(0.999) / 1_000_000.0,
+                    histogram.getMaxNanos() / 1_000_000.0);
+        }
+
+        System.out.println("errors seen by players:");
+        new TreeMap<>(errors).forEach((key, count) -> System.out.printf("  %-50s %d%n", key, count.sum()));
+        System.out.println("stub responses:");
+        new TreeMap<>(stub.getCounters()).forEach((key, count) -> System.out.printf("  %-50s %d%n", key, count.sum()));
+
+        System.out.printf("active shop processes: peak=%d end=%d, stub sessions left open=%d%n",
+                peakActiveProcesses, ShopCommands.getActiveShopProcessCount(), stub.getOpenSessions());
+        System.out.printf("heap: before=%.1f MB after=%.1f MB growth=%.1f MB peak=%.1f MB%n",
+                heapBefore / 1048576.0, heapAfter / 1048576.0, (heapAfter - heapBefore) / 1048576.0, peakHeapBytes / 1048576.0);
+        System.out.printf("server thread per tick: avg %s%n", TickProfiler.formatShare(TickProfiler.getAverageNanos()));
+        for (TickProfiler.TickSample sample : TickProfiler.getWorstTicks()) {
+            System.out.printf("  worst tick: %s (%s)%n", TickProfiler.formatShare(sample.totalNanos()), TickProfiler.formatBreakdown(sample.phaseNanos()));
+        }
+
+        Files.createDirectories(metricsFile.toAbsolutePath().getParent());
+        ShopMetrics.dumpToFile(metricsFile);
+        System.out.println("mod metrics written to " + metricsFile);
+
+        boolean passed = errorRate <= maxErrorRate;
+        if (!passed) {
+            System.out.printf("FAILED: error rate %.2f%% is above the maximum of %.2f%%%n", errorRate * 100, maxErrorRate * 100);
+        }
+        return passed;
+    }
+
+    /**
+     * A synthetic player that runs commands and waits for the resulting chat messages
+     */
+    private class Shopper {
+        private final LoadTestPlayer player;
+        private final CommandSourceStack source;
+        private List<Component> block = new ArrayList<>();
+        private CompletableFuture<List<Component>> pending;
+
+        Shopper(int index, ItemStack[] stacks) throws ReflectiveOperationException {
+            UUID id = UUID.nameUUIDFromBytes(("Shopper" + index).getBytes(StandardCharsets.UTF_8));
+            player = BenchmarkCorpus.createPlayer(LoadTestPlayer.class, id, "Shopper" + index, stacks, stacks);
+            BenchmarkCorpus.setField(ServerPlayer.class, player, "server", server);
+            player.setMessageListener(this::onMessage);
+            source = new CommandSourceStack(CommandSource.NULL, Vec3.ZERO, Vec2.ZERO, null, 0,
+                    player.getName().getString(), player.getName(), server, player);
+        }
+
+        // Every shop UI ends with a footer border, which completes the step waiting for it
+        private synchronized void onMessage(Component message) {
+            block.add(message);
+            if (FOOTER.equals(message.getString())) {
+                List<Component> finished = block;
+                block = new ArrayList<>();
+                CompletableFuture<List<Component>> future = pending;
+                pending = null;
+                if (future != null) {
+                    future.complete(finished);
+                }
+            }
+        }
+
+        /**
+         * Runs a command and waits for the shop UI it produces
+         * @return The process id to use for the next step, or an empty string after the last step
+         */
+        CompletableFuture<String> run(Step step, String command) {
+            CompletableFuture<List<Component>> future = new CompletableFuture<>();
+            synchronized (this) {
+                block = new ArrayList<>();
+                pending = future;
+            }
+            long start = System.nanoTime();
+            serverThread.execute(() -> {
+                try {
+                    if (dispatcher.execute(command, source) == 0) {
+                        future.completeExceptionally(new StepFailure(step, "command rejected"));
+                    }
+                } catch (CommandSyntaxException | RuntimeException e) {
+                    future.completeExceptionally(new StepFailure(step, "command threw " + e.getClass().getSimpleName()));
+                }
+            });
+
+            return future.orTimeout(timeoutSeconds, TimeUnit.SECONDS).handle((messages, error) -> {
+                if (error != null) {
+                    synchronized (this) {
+                        if (pending == future) {
+                            pending = null;
+                        }
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof StepFailure failure) {
+                        throw failure;
+                    }
+                    throw new StepFailure(step, cause instanceof TimeoutException ? "no response within " + timeoutSeconds + "s" : cause.toString());
+                }
+                String result = findResult(step, messages);
+                if (result == null) {
+                    throw new StepFailure(step, findTitle(messages));
+                }
+                latencies.get(step).record(System.nanoTime() - start);
+                return result;
+            });
+        }
+    }
+
+    private static String findResult(Step step, List<Component> messages) {
+        for (Component message : messages) {
+            String result = switch (step) {
+                case SHOP -> findCommand(message, "/shopFinish ");
+                case FINISH -> findCommand(message, "/confirmFinish ");
+                case CONFIRM -> message.getString().contains(SUCCESS_MESSAGE) ? "" : null;
+            };
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static String findCommand(Component component, String prefix) {
+        ClickEvent click = component.getStyle().getClickEvent();
+        if (click != null && click.getAction() == ClickEvent.Action.RUN_COMMAND && click.getValue().startsWith(prefix)) {
+            return click.getValue().substring(prefix.length());
+        }
+        for (Component sibling : component.getSiblings()) {
+            String result = findCommand(sibling, prefix);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    // The header border of an error UI holds its title, e.g. "===== Network Error ====="
+    private static String findTitle(List<Component> messages) {
+        for (Component message : messages) {
+            String text = message.getString();
+            if (text.startsWith("=") && !text.equals(FOOTER)) {
+                return text.replace("=", "").trim();
+            }
+        }
+        return "unexpected response";
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
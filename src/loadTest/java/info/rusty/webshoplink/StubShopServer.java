@@ -0,0 +1,271 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the shop API with configurable latency and failures.
+ * Responses are delayed on a scheduler instead of sleeping, so thousands of requests can be in flight at once.
+ * Every checkout adds a stack of emeralds to the first free inventory slot, like a small purchase.
+ * Gzip request bodies are decompressed, and responses are compressed for clients that accept gzip.
+ */
+public class StubShopServer {
+    private static final Gson GSON = new Gson();
+
+    private final HttpServer server;
+    private final ExecutorService handlerExecutor;
+    private final ScheduledExecutorService responseScheduler;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double failureRate;
+    private final double dropRate;
+    private final Map<String, JsonObject> sessions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param latencyMillis Minimum delay of every response
+     * @param jitterMillis Mean of an exponentially distributed delay added on top
+     * @param failureRate Share of requests answered with HTTP 500
+     * @param dropRate Share of requests whose connection is closed without a response
+     */
+    public StubShopServer(long latencyMillis, long jitterMillis, double failureRate, double dropRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.failureRate = failureRate;
+        this.dropRate = dropRate;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.handlerExecutor = Executors.newFixedThreadPool(4, runnable -> daemon(runnable, "Stub-Handler"));
+        this.responseScheduler = Executors.newScheduledThreadPool(2, runnable -> daemon(runnable, "Stub-Response"));
+        this.server.setExecutor(handlerExecutor);
+        this.server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        responseScheduler.shutdownNow();
+        handlerExecutor.shutdownNow();
+    }
+
+    /**
+     * @return The base URL to use as {@code apiBaseUrl}
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return Request counts per endpoint and outcome
+     */
+    public Map<String, LongAdder> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return The number of sessions that were initiated but not applied or cancelled
+     */
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String body;
+        boolean gzipRequest = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream input = gzipRequest ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.split("/");
+        String endpoint = parts.length > 0 ? parts[parts.length - 1] : "";
+
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < dropRate) {
+            count(endpoint, "dropped");
+            schedule(exchange::close);
+            return;
+        }
+        if (roll < dropRate + failureRate) {
+            count(endpoint, "failed");
+            schedule(() -> respond(exchange, 500, "{\"message\":\"Injected server error\"}"));
+            return;
+        }
+
+        int status = 200;
+        String response;
+        switch (endpoint) {
+            case "initiate" -> response = initiate(body);
+            case "batch" -> response = batch(parts[parts.length - 2], body);
+            case "reserve" -> response = reserve();
+            case "inventory" -> response = uploadInventory(parts[parts.length - 2], body);
+            case "checkout" -> response = checkout(parts[parts.length - 2]);
+            case "setApplied" -> {
+                sessions.remove(parts[parts.length - 2]);
+                response = "{\"message\":\"Shop instance marked as applied\"}";
+            }
+            case "cancel" -> {
+                sessions.remove(parts[parts.length - 2]);
+                response = "{\"message\":\"Shop instance cancelled\"}";
+            }
+            default -> {
+                status = 404;
+                response = "{\"message\":\"Unknown endpoint\"}";
+            }
+        }
+        if (response == null) {
+            status = 404;
+            response = "{\"message\":\"Shop instance not found\"}";
+        }
+        count(endpoint, Integer.toString(status));
+        int finalStatus = status;
+        String finalResponse = response;
+        schedule(() -> respond(exchange, finalStatus, finalResponse));
+    }
+
+    private String initiate(String body) {
+        JsonObject request = JsonParser.parseString(body).getAsJsonObject();
+        String uuid = UUID.randomUUID().toString();
+        sessions.put(uuid, request.getAsJsonObject("inventories"));
+
+        JsonObject response = new JsonObject();
+        response.addProperty("uuid", uuid);
+        response.addProperty("link", getBaseUrl() + "/shop/" + uuid);
+        response.addProperty("twoFactorCode", String.format("%06d", ThreadLocalRandom.current().nextInt(1_000_000)));
+        return GSON.toJson(response);
+    }
+
+    // Every session of a batch is handled like its own request, and answered in the same order
+    private String batch(String endpoint, String body) {
+        JsonArray requests = JsonParser.parseString(body).getAsJsonObject().getAsJsonArray("sessions");
+        JsonArray responses = new JsonArray();
+        for (JsonElement request : requests) {
+            if (endpoint.equals("initiate")) {
+                responses.add(JsonParser.parseString(initiate(GSON.toJson(request))));
+                continue;
+            }
+            // Like the single cancel and setApplied endpoints
+            String uuid = request.getAsJsonObject().get("uuid").getAsString();
+            sessions.remove(uuid);
+            JsonObject result = new JsonObject();
+            result.addProperty("uuid", uuid);
+            result.addProperty("status", 200);
+            result.addProperty("message", endpoint.equals("cancel") ? "Shop instance cancelled" : "Shop instance marked as applied");
+            responses.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.add("sessions", responses);
+        return GSON.toJson(response);
+    }
+
+    // Like initiate, the inventory follows with an upload
+    private String reserve() {
+        String uuid = UUID.randomUUID().toString();
+        sessions.put(uuid, new JsonObject());
+
+        JsonObject response = new JsonObject();
+        response.addProperty("uuid", uuid);
+        response.addProperty("link", getBaseUrl() + "/shop/" + uuid);
+        response.addProperty("twoFactorCode", String.format("%06d", ThreadLocalRandom.current().nextInt(1_000_000)));
+        return GSON.toJson(response);
+    }
+
+    private String uploadInventory(String uuid, String body) {
+        if (!sessions.containsKey(uuid)) {
+            return null;
+        }
+        sessions.put(uuid, JsonParser.parseString(body).getAsJsonObject().getAsJsonObject("inventories"));
+        return "{\"message\":\"Inventory received\"}";
+    }
+
+    private String checkout(String uuid) {
+        JsonObject inventories = sessions.get(uuid);
+        if (inventories == null) {
+            return null;
+        }
+        JsonObject result = inventories.deepCopy();
+        JsonObject inventory = result.getAsJsonObject("inventory");
+        if (inventory != null) {
+            JsonObject items = inventory.getAsJsonObject("items");
+            // Only the 36 main slots, the rest are armor and offhand
+            int slot = 0;
+            while (slot < 35 && items.has(Integer.toString(slot))) {
+                slot++;
+            }
+            JsonObject emeralds = new JsonObject();
+            emeralds.addProperty("itemId", "minecraft:emerald");
+            emeralds.addProperty("count", 1 + ThreadLocalRandom.current().nextInt(16));
+            items.add(Integer.toString(slot), emeralds);
+        }
+        return GSON.toJson(result);
+    }
+
+    private void schedule(Runnable response) {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            delay += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * jitterMillis);
+        }
+        responseScheduler.schedule(response, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream output = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                bytes = gzip(bytes);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            output.write(bytes);
+        } catch (IOException e) {
+            // The client went away, nothing to do
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(bytes);
+        }
+        return output.toByteArray();
+    }
+
+    private void count(String endpoint, String outcome) {
+        counters.computeIfAbsent(endpoint + " " + outcome, key -> new LongAdder()).increment();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,304 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Replays a traffic recording made by {@link TrafficRecorder} through the mod's inventory pipeline, without a backend.
+ *
+ * Initiate requests rebuild the player's containers and run the capture and serialization done by /shop,
+ * checkout responses are parsed and diffed like /shopFinish, and setApplied runs the merge and apply of /confirmFinish.
+ * Times are taken from the mod's own phase metrics, so the report matches /shopstats on a live server.
+ *
+ * Options: --file webshoplink-traffic.jsonl.gz, --speed 0 (0 replays as fast as possible, 1 in real time),
+ * --max-gap-ms 5000, --loops 1, --metrics build/reports/replay/metrics.prom
+ */
+public class TrafficReplay {
+    private static final Gson GSON = new GsonBuilder()
+        .registerTypeAdapter(CompoundTag.class, new NbtSerializer.CompoundTagAdapter())
+        .create();
+    private static final ShopMetrics.Phase[] REPORTED_PHASES = {
+        ShopMetrics.Phase.CAPTURE, ShopMetrics.Phase.SERIALIZE, ShopMetrics.Phase.JSON, ShopMetrics.Phase.PARSE,
+        ShopMetrics.Phase.DIFF, ShopMetrics.Phase.MATCH, ShopMetrics.Phase.STAGE, ShopMetrics.Phase.APPLY
+    };
+
+    /**
+     * A replayed shop session
+     */
+    private static class Session {
+        private final ServerPlayer player;
+        private final InventorySnapshot snapshot;
+        private final InventoryFilter filter;
+        private InventoryList result;
+
+        Session(ServerPlayer player, InventorySnapshot snapshot, InventoryFilter filter) {
+            this.player = player;
+            this.snapshot = snapshot;
+            this.filter = filter;
+        }
+    }
+
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<String, ShopMetrics.LatencyHistogram> recordedLatencies = new TreeMap<>();
+    private final Map<String, Integer> skipped = new TreeMap<>();
+    private int replayed;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        Path file = Path.of(options.getOrDefault("file", "webshoplink-traffic.jsonl.gz"));
+        double speed = Double.parseDouble(options.getOrDefault("speed", "0"));
+        long maxGapMillis = Long.parseLong(options.getOrDefault("max-gap-ms", "5000"));
+        int loops = Integer.parseInt(options.getOrDefault("loops", "1"));
+        Path metricsFile = Path.of(options.getOrDefault("metrics", "build/reports/replay/metrics.prom"));
+
+        BenchmarkCorpus.bootstrap();
+        List<JsonObject> exchanges = read(file);
+        System.out.println("Loaded " + exchanges.size() + " exchanges from " + file);
+
+        TrafficReplay replay = new TrafficReplay();
+        long start = System.nanoTime();
+        for (int loop = 0; loop < loops; loop++) {
+            replay.sessions.clear();
+            replay.run(exchanges, speed, maxGapMillis);
+        }
+        replay.report((System.nanoTime() - start) / 1_000_000_000.0);
+
+        Files.createDirectories(metricsFile.toAbsolutePath().getParent());
+        ShopMetrics.dumpToFile(metricsFile);
+        System.out.println("mod metrics written to " + metricsFile);
+    }
+
+    // Every server run appends its own gzip member, GZIPInputStream reads them as one stream
+    private static List<JsonObject> read(Path file) throws Exception {
+        List<JsonObject> exchanges = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    exchanges.add(JsonParser.parseString(line).getAsJsonObject());
+                }
+            }
+        }
+        return exchanges;
+    }
+
+    private void run(List<JsonObject> exchanges, double speed, long maxGapMillis) throws InterruptedException {
+        long previousTime = -1;
+        for (JsonObject exchange : exchanges) {
+            long time = exchange.get("time").getAsLong();
+            if (speed > 0 && previousTime >= 0) {
+                long gap = Math.min(Math.max(0, time - previousTime), maxGapMillis);
+                Thread.sleep((long) (gap / speed));
+            }
+            previousTime = time;
+
+            String endpoint = exchange.get("endpoint").getAsString();
+            recordedLatencies.computeIfAbsent(endpoint, key -> new ShopMetrics.LatencyHistogram())
+                    .record(exchange.get("durationMicros").getAsLong() * 1000);
+            if (exchange.get("status").getAsInt() != 200 || !exchange.has("response")) {
+                skip(endpoint + " without success response");
+                continue;
+            }
+
+            switch (endpoint) {
+                case "initiate" -> replayInitiate(exchange);
+                case "initiateBatch" -> replayInitiateBatch(exchange);
+                case "reserve" -> replayReserve(exchange);
+                case "upload" -> startSession(processOf(exchange), exchange);
+                case "checkout" -> replayCheckout(exchange);
+                case "setApplied" -> replayApplied(exchange);
+                case "cancel" -> sessions.remove(processOf(exchange));
+                case "cancelBatch" -> replayBatch(exchange, false);
+                case "setAppliedBatch" -> replayBatch(exchange, true);
+                default -> skip("unknown endpoint " + endpoint);
+            }
+        }
+    }
+
+    // What /shop does after the initiate request, the inventory work happens before it
+    private void replayInitiate(JsonObject exchange) {
+        long parseStart = System.nanoTime();
+        ShopResponse response = GSON.fromJson(exchange.get("response"), ShopResponse.class);
+        ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+        if (response.getUuid() == null) {
+            skip("initiate without process id");
+            return;
+        }
+        startSession(response.getUuid(), exchange);
+    }
+
+    // Each session of a batch is replayed like its own initiate request
+    private void replayInitiateBatch(JsonObject exchange) {
+        JsonArray requests = exchange.getAsJsonObject("request").getAsJsonArray("sessions");
+        JsonArray responses = exchange.getAsJsonObject("response").getAsJsonArray("sessions");
+        for (int i = 0; i < requests.size() && i < responses.size(); i++) {
+            JsonObject session = new JsonObject();
+            session.add("request", requests.get(i));
+            session.add("response", responses.get(i));
+            JsonObject request = requests.get(i).getAsJsonObject();
+            if (request.has("shopSlug")) {
+                session.add("shop", request.get("shopSlug"));
+            }
+            replayInitiate(session);
+        }
+    }
+
+    // A reserved session only starts with its inventory upload
+    private void replayReserve(JsonObject exchange) {
+        long parseStart = System.nanoTime();
+        GSON.fromJson(exchange.get("response"), ShopResponse.class);
+        ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+        replayed++;
+    }
+
+    // What /shop does with the player's containers, for an initiate request or an inventory upload
+    private void startSession(String process, JsonObject exchange) {
+        JsonObject request = exchange.getAsJsonObject("request");
+        InventoryList recorded = GSON.fromJson(request.get("inventories"), InventoryList.class);
+        ServerPlayer player = BenchmarkCorpus.createPlayer(ServerPlayer.class, UUID.randomUUID(), "Replay",
+                toStacks(recorded.getInventoryData() != null ? recorded.getInventoryData().getSize() : null,
+                        recorded.getInventoryData() != null ? recorded.getInventoryData().getItems() : null),
+                toStacks(recorded.getEnderChestData() != null ? recorded.getEnderChestData().getSize() : null,
+                        recorded.getEnderChestData() != null ? recorded.getEnderChestData().getItems() : null));
+
+        InventoryFilter filter = exchange.has("shop") ? InventoryFilter.forShop(exchange.get("shop").getAsString()) : InventoryFilter.ALL;
+        InventorySnapshot snapshot = InventoryManager.captureInventory(player);
+        InventoryList inventories = new InventoryList();
+        if (recorded.getInventoryData() != null && filter.includesInventory()) {
+            inventories.setInventoryFromPlayer(player.getInventory(), filter);
+        }
+        if (recorded.getEnderChestData() != null && filter.includesEchest()) {
+            inventories.setEchestFromPlayer(player.getEnderChestInventory(), filter);
+        }
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("playerId", player.getUUID().toString());
+        payload.put("shopSlug", request.has("shopSlug") ? request.get("shopSlug").getAsString() : "replay");
+        payload.put("inventories", inventories);
+        long jsonStart = System.nanoTime();
+        GSON.toJson(payload);
+        ShopMetrics.recordSince(ShopMetrics.Phase.JSON, jsonStart);
+
+        sessions.put(process, new Session(player, snapshot, filter));
+        replayed++;
+    }
+
+    // What /shopFinish does with the checkout response
+    private void replayCheckout(JsonObject exchange) {
+        Session session = sessions.get(processOf(exchange));
+        if (session == null) {
+            skip("checkout of a session started before the recording");
+            return;
+        }
+        long parseStart = System.nanoTime();
+        session.result = GSON.fromJson(exchange.get("response"), InventoryList.class);
+        ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+        InventoryManager.generateInventoryDiff(session.snapshot, session.result.getInventoryData(), session.result.getEnderChestData(), session.filter);
+        replayed++;
+    }
+
+    // What /confirmFinish does around the setApplied request
+    private void replayApplied(JsonObject exchange) {
+        Session session = sessions.remove(processOf(exchange));
+        if (session == null || session.result == null) {
+            skip("setApplied of a session started before the recording");
+            return;
+        }
+        InventorySnapshot current = InventoryManager.captureInventory(session.player);
+        InventoryMerge merge = InventoryManager.mergeInventories(session.snapshot, current,
+                session.result.getInventoryData(), session.result.getEnderChestData(), session.filter);
+        InventoryManager.inventoriesMatch(session.snapshot, current);
+        try {
+            InventoryBatch.stage(session.player, session.result.getInventoryData(), session.result.getEnderChestData(), merge).commit(session.player);
+            replayed++;
+        } catch (ErrorResponse e) {
+            skip("apply failed: " + e.getErrorMessage());
+        }
+    }
+
+    // Each accepted session of a batched cancel or setApplied is replayed like its own request
+    private void replayBatch(JsonObject exchange, boolean applied) {
+        JsonArray requests = exchange.getAsJsonObject("request").getAsJsonArray("sessions");
+        JsonArray results = exchange.getAsJsonObject("response").getAsJsonArray("sessions");
+        for (int i = 0; i < requests.size() && i < results.size(); i++) {
+            JsonObject result = results.get(i).getAsJsonObject();
+            if (!result.has("status") || result.get("status").getAsInt() != 200) {
+                skip("batched session without success result");
+                continue;
+            }
+            JsonObject session = new JsonObject();
+            session.add("process", requests.get(i).getAsJsonObject().get("uuid"));
+            if (applied) {
+                replayApplied(session);
+            } else {
+                sessions.remove(processOf(session));
+            }
+        }
+    }
+
+    private static String processOf(JsonObject exchange) {
+        JsonElement process = exchange.get("process");
+        return process != null ? process.getAsString() : "";
+    }
+
+    private static ItemStack[] toStacks(Integer size, Map<Integer, ItemData> items) {
+        ItemStack[] stacks = new ItemStack[size != null ? size : 0];
+        if (items != null) {
+            for (Map.Entry<Integer, ItemData> item : items.entrySet()) {
+                if (item.getKey() < stacks.length) {
+                    stacks[item.getKey()] = item.getValue().getItemStackData();
+                }
+            }
+        }
+        return stacks;
+    }
+
+    private void skip(String reason) {
+        skipped.merge(reason, 1, Integer::sum);
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.println("==================== Replay ====================");
+        System.out.printf("replayed %d exchanges in %.1fs%n", replayed, seconds);
+        skipped.forEach((reason, count) -> System.out.printf("  skipped %-50s %d%n", reason, count));
+
+        System.out.println("recorded API latency: count | p50 / p99 / max (ms)");
+        recordedLatencies.forEach((endpoint, histogram) -> System.out.printf("  %-12s %d | %.1f / %.1f / %.1f%n", endpoint, histogram.getCount(),
+                histogram.getValueAtPercentile(0.5) / 1_000_000.0, histogram.getValueAtPercentile(0.99) / 1_000_000.0, histogram.getMaxNanos() / 1_000_000.0));
+
+        System.out.println("replayed pipeline: count | p50 / p99 / p999 / max (ms)");
+        Map<ShopMetrics.Phase, ShopMetrics.LatencyHistogram> phases = new EnumMap<>(ShopMetrics.Phase.class);
+        for (ShopMetrics.Phase phase : REPORTED_PHASES) {
+            phases.put(phase, ShopMetrics.getHistogram(phase));
+        }
+        phases.forEach((phase, histogram) -> System.out.printf("  %-12s %d | %.3f / %.3f / %.3f / %.3f%n", phase.getLabel(), histogram.getCount(),
+                histogram.getValueAtPercentile(0.5) / 1_000_000.0, histogram.getValueAtPercentile(0.99) / 1_000_000.0,
+                histogram.getValueAtPercentile(0.999) / 1_000_000.0, histogram.getMaxNanos() / 1_000_000.0));
+    }
+}
@@ -11,10 +11,16 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import net.minecraft.nbt.CompoundTag;
 
 /**
@@ -25,10 +31,47 @@ public class ApiService {
     private static final Gson GSON = new GsonBuilder()
         .registerTypeAdapter(CompoundTag.class, new NbtSerializer.CompoundTagAdapter())
         .create();
-    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
-        .version(HttpClient.Version.HTTP_2)
-        .connectTimeout(Duration.ofSeconds(10))
-        .build();
+    // Headers every JSON request carries. Requests start from a copy, the template itself is never changed.
+    private static final HttpRequest.Builder JSON_REQUEST = HttpRequest.newBuilder()
+        .header("Content-Type", "application/json");
+    // Replaced on server start, so the configured executor is used
+    private static volatile HttpClient httpClient = newHttpClient(null);
+
+    /**
+     * Creates the HTTP client, on a dedicated executor if {@code httpThreads} is set
+     */
+    public static synchronized void start() {
+        ExecutorService executor = null;
+        if (Config.httpThreads > 0) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(Config.httpThreads, Config.httpThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "Webshoplink-Http");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // Threads end when idle, so a replaced client can finish its exchanges without being shut down
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        httpClient = newHttpClient(executor);
+    }
+
+    /**
+     * Falls back to a client on the default executor. Exchanges still in flight finish on the old one.
+     */
+    public static synchronized void stop() {
+        httpClient = newHttpClient(null);
+    }
+
+    private static HttpClient newHttpClient(ExecutorService executor) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10));
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
 
     /**
      * Initiates a shop session with the API
@@ -44,74 +87,161 @@ public class ApiService {
         payload.put("inventories", inventories);
         
         // Send HTTP request
+        long jsonStart = System.nanoTime();
         String jsonPayload = GSON.toJson(payload);
+        ShopMetrics.recordSince(ShopMetrics.Phase.JSON, jsonStart);
         
-        DebugLogger.log("Sending API request to: " + Config.apiBaseUrl + Config.shopEndpoint, Config.DebugVerbosity.DEFAULT);
+        if (InitiateBatcher.isEnabled()) {
+            return InitiateBatcher.submit(shopSlug, jsonPayload);
+        }
+        return sendInitiate(shopSlug, jsonPayload);
+    }
+
+    /**
+     * Sends a single initiate request
+     * @param jsonPayload The serialized request payload of {@link #initiateShop}
+     */
+    static CompletableFuture<ShopResponse> sendInitiate(String shopSlug, String jsonPayload) {
+        return requestShopSession("initiate", BackendRouter.forShop(shopSlug), Config.endpoints.initiate(), ShopMetrics.Phase.API_INITIATE, shopSlug, jsonPayload);
+    }
+
+    /**
+     * Initiates several shop sessions with one request to the batch endpoint
+     * @param backend The backend all sessions are created on
+     * @param jsonPayloads The serialized request payloads of {@link #initiateShop}, one per session
+     * @return A CompletableFuture with one response per session in the same order,
+     * or null if the API does not support batching
+     */
+    static CompletableFuture<List<ShopResponse>> initiateBatch(BackendRouter.Backend backend, List<String> jsonPayloads) {
+        // The payloads are already JSON, so they are joined instead of serialized again
+        String jsonPayload = "{\"sessions\":[" + String.join(",", jsonPayloads) + "]}";
+        URI endpoint = Config.endpoints.batchInitiate().resolve(backend.getBaseUrl());
+
+        DebugLogger.log("Sending batch of " + jsonPayloads.size() + " initiate requests to: " + endpoint, Config.DebugVerbosity.DEFAULT);
+
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
+        // Process the request asynchronously
+        return sendInventory("initiateBatch", backend, JSON_REQUEST.copy().uri(endpoint), jsonPayload)
+            .whenComplete((response, error) -> finishExchange(exchange, "initiateBatch", null, null, start, jsonPayload, response))
+            .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_INITIATE_BATCH, start);
+                ShopMetrics.countResponse("initiateBatch", response.statusCode());
+                int status = response.statusCode();
+                if (status == 404 || status == 405 || status == 501) {
+                    return null;
+                }
+
+                List<ShopResponse> shopResponses = new ArrayList<>(jsonPayloads.size());
+                if (status != 200) {
+                    ShopResponse errorResponse = parseErrorResponse(response);
+                    for (int i = 0; i < jsonPayloads.size(); i++) {
+                        shopResponses.add(errorResponse);
+                    }
+                    return shopResponses;
+                }
+
+                DebugLogger.log("Received successful batch response: " + response.body(), Config.DebugVerbosity.ALL);
+                long parseStart = System.nanoTime();
+                InitiateBatchResponse batchResponse = GSON.fromJson(response.body(), InitiateBatchResponse.class);
+                ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+                if (batchResponse == null || batchResponse.getSessions() == null || batchResponse.getSessions().size() != jsonPayloads.size()) {
+                    DebugLogger.logError("Invalid response: Batch response does not match the batch request", null);
+                    ShopResponse errorResponse = new ShopResponse();
+                    errorResponse.setErrorMessage("Invalid response: Batch response does not match the batch request");
+                    for (int i = 0; i < jsonPayloads.size(); i++) {
+                        shopResponses.add(errorResponse);
+                    }
+                    return shopResponses;
+                }
+                for (int i = 0; i < jsonPayloads.size(); i++) {
+                    ShopResponse shopResponse = batchResponse.getSessions().get(i);
+                    if (shopResponse == null) {
+                        shopResponse = new ShopResponse();
+                        shopResponse.setErrorMessage("Invalid response: Missing session in batch response");
+                    } else if (!shopResponse.hasError()) {
+                        shopResponse.setRequestBytes(ShopEvents.utf8Length(jsonPayloads.get(i)));
+                        bindSession(validateShopResponse(shopResponse), backend);
+                    }
+                    shopResponses.add(shopResponse);
+                }
+                return shopResponses;
+            }).exceptionally(ex -> {
+                ShopMetrics.countError("initiateBatch");
+                DebugLogger.logError("Exception during batch API call", ex);
+                ShopResponse errorResponse = new ShopResponse();
+                ErrorResponse limitError = ResponseLimits.findErrorResponse(ex);
+                if (limitError != null) {
+                    errorResponse.setErrorMessage(limitError.getErrorMessage());
+                } else if (ex.getCause() != null) {
+                    errorResponse.setErrorMessage("Communication error: " + ex.getCause().getMessage());
+                } else {
+                    errorResponse.setErrorMessage("Communication error: Failed to connect to shop server");
+                }
+                List<ShopResponse> shopResponses = new ArrayList<>(jsonPayloads.size());
+                for (int i = 0; i < jsonPayloads.size(); i++) {
+                    shopResponses.add(errorResponse);
+                }
+                return shopResponses;
+            });
+    }
+
+    /**
+     * Reserves a shop session without sending the inventory, which has to follow with {@link #uploadInventory}.
+     * The web shop waits for the upload, so the link can be shown to the player right away.
+     */
+    public static CompletableFuture<ShopResponse> reserveShop(UUID playerId, String playerName, String shopSlug) {
+        DebugLogger.log("Player " + playerName + " reserved shop session", Config.DebugVerbosity.MINIMAL);
+
+        // Create request payload
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("playerId", playerId.toString());
+        payload.put("shopSlug", shopSlug);
+
+        String jsonPayload = GSON.toJson(payload);
+        return requestShopSession("reserve", BackendRouter.forShop(shopSlug), Config.endpoints.reserve(), ShopMetrics.Phase.API_RESERVE, shopSlug, jsonPayload);
+    }
+
+    /**
+     * Sends a request that starts a shop session and returns its UUID, link and verification code
+     * @param endpointName The endpoint name used in metrics and recordings
+     * @param backend The backend the session is created on
+     * @param endpoint The endpoint below the backend's base URL
+     * @param phase The phase the network time is recorded as
+     */
+    private static CompletableFuture<ShopResponse> requestShopSession(String endpointName, BackendRouter.Backend backend, EndpointTemplate endpoint, ShopMetrics.Phase phase, String shopSlug, String jsonPayload) {
+        URI url = endpoint.resolve(backend.getBaseUrl());
+        DebugLogger.log("Sending API request to: " + url, Config.DebugVerbosity.DEFAULT);
         
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(Config.apiBaseUrl + Config.shopEndpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                .build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
         // Process the request asynchronously
-        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return sendInventory(endpointName, backend, JSON_REQUEST.copy().uri(url), jsonPayload)
+            .whenComplete((response, error) -> finishExchange(exchange, endpointName, null, shopSlug, start, jsonPayload, response))
             .thenApply(response -> {
+                ShopMetrics.recordSince(phase, start);
+                ShopMetrics.countResponse(endpointName, response.statusCode());
                 if (response.statusCode() == 200) {
                     DebugLogger.log("Received successful response: " + response.body(), Config.DebugVerbosity.DEFAULT);
+                    long parseStart = System.nanoTime();
                     ShopResponse shopResponse = GSON.fromJson(response.body(), ShopResponse.class);
-                    
-                    // Validate the UUID in the response
-                    if (shopResponse.getUuid() == null || shopResponse.getUuid().isEmpty()) {
-                        DebugLogger.logError("Invalid response: Missing UUID in shop response", null);
-                        shopResponse.setErrorMessage("Invalid response: Missing UUID in shop response");
-                        return shopResponse;
-                    }
-                    
-                    // Validate the link in the response
-                    if (shopResponse.getLink() == null || shopResponse.getLink().isEmpty()) {
-                        DebugLogger.logError("Invalid response: Missing link in shop response", null);
-                        shopResponse.setErrorMessage("Invalid response: Missing link in shop response");
-                        return shopResponse;
-                    }
-                    
-                    DebugLogger.log("Shop session initiated", Config.DebugVerbosity.MINIMAL);
-                    DebugLogger.log("Session UUID from server: " + shopResponse.getUuid(), Config.DebugVerbosity.DEFAULT);
-                    return shopResponse;
+                    ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+                    shopResponse.setRequestBytes(ShopEvents.utf8Length(jsonPayload));
+                    return bindSession(validateShopResponse(shopResponse), backend);
                 } else {
-                    String errorMsg = "Error from shop API: " + response.statusCode() + " - " + response.body();
-                    DebugLogger.logError(errorMsg, null);
-                    
-                    // Try to parse error message from response body
-                    ShopResponse errorResponse = new ShopResponse();
-                    
-                    try {
-                        // First try parsing as ShopResponse directly
-                        errorResponse = GSON.fromJson(response.body(), ShopResponse.class);
-                        
-                        // If error message is null, try parsing as error object with message field
-                        if (errorResponse.getErrorMessage() == null) {
-                            Map<String, String> errorMap = GSON.fromJson(response.body(), Map.class);
-                            if (errorMap.containsKey("message") || errorMap.containsKey("error")) {
-                                String message = errorMap.getOrDefault("message", 
-                                                errorMap.getOrDefault("error", "Unknown error"));
-                                errorResponse.setErrorMessage(message);
-                                DebugLogger.log("Parsed error message: " + message, Config.DebugVerbosity.DEFAULT);
-                            } else {
-                                errorResponse.setErrorMessage("API error: " + response.statusCode());
-                            }
-                        }
-                    } catch (Exception e) {
-                        // If parsing fails, create a generic error message
-                        DebugLogger.logError("Failed to parse error response: " + e.getMessage(), e);
-                        errorResponse.setErrorMessage("API error: " + response.statusCode() + " - " + response.body());
-                    }
-                    
-                    return errorResponse;
+                    DebugLogger.logError("Error from shop API: " + response.statusCode() + " - " + response.body(), null);
+                    return parseErrorResponse(response);
                 }
             }).exceptionally(ex -> {
+                ShopMetrics.countError(endpointName);
                 DebugLogger.logError("Exception during API call", ex);
                 ShopResponse errorResponse = new ShopResponse();
-                if (ex.getCause() != null) {
+                ErrorResponse limitError = ResponseLimits.findErrorResponse(ex);
+                if (limitError != null) {
+                    errorResponse.setErrorMessage(limitError.getErrorMessage());
+                } else if (ex.getCause() != null) {
                     errorResponse.setErrorMessage("Communication error: " + ex.getCause().getMessage());
                 } else {
                     errorResponse.setErrorMessage("Communication error: Failed to connect to shop server");
@@ -121,9 +251,161 @@ public class ApiService {
     }
 
     /**
-     * Cancels a shop session with the API
+     * Checks that a successful shop session response has a UUID and a link, and sets its error message otherwise
+     */
+    private static ShopResponse validateShopResponse(ShopResponse shopResponse) {
+        // Validate the UUID in the response
+        if (shopResponse.getUuid() == null || shopResponse.getUuid().isEmpty()) {
+            DebugLogger.logError("Invalid response: Missing UUID in shop response", null);
+            shopResponse.setErrorMessage("Invalid response: Missing UUID in shop response");
+            return shopResponse;
+        }
+        
+        // Validate the link in the response
+        if (shopResponse.getLink() == null || shopResponse.getLink().isEmpty()) {
+            DebugLogger.logError("Invalid response: Missing link in shop response", null);
+            shopResponse.setErrorMessage("Invalid response: Missing link in shop response");
+            return shopResponse;
+        }
+        
+        DebugLogger.log("Shop session initiated", Config.DebugVerbosity.MINIMAL);
+        DebugLogger.log("Session UUID from server: " + shopResponse.getUuid(), Config.DebugVerbosity.DEFAULT);
+        return shopResponse;
+    }
+
+    /**
+     * Sends the later requests of a created session to the backend that created it
+     */
+    private static ShopResponse bindSession(ShopResponse shopResponse, BackendRouter.Backend backend) {
+        if (!shopResponse.hasError()) {
+            try {
+                BackendRouter.bind(UUID.fromString(shopResponse.getUuid()), backend);
+            } catch (IllegalArgumentException e) {
+                // Not a UUID, the session can't be used anyway
+            }
+        }
+        return shopResponse;
+    }
+
+    /**
+     * Builds the shop session response for a failed request, with the error message of its body if there is one
+     */
+    private static ShopResponse parseErrorResponse(HttpResponse<String> response) {
+        // Try to parse error message from response body
+        ShopResponse errorResponse = new ShopResponse();
+        
+        try {
+            // First try parsing as ShopResponse directly
+            errorResponse = GSON.fromJson(response.body(), ShopResponse.class);
+            
+            // If error message is null, try parsing as error object with message field
+            if (errorResponse.getErrorMessage() == null) {
+                Map<String, String> errorMap = GSON.fromJson(response.body(), Map.class);
+                if (errorMap.containsKey("message") || errorMap.containsKey("error")) {
+                    String message = errorMap.getOrDefault("message", 
+                                    errorMap.getOrDefault("error", "Unknown error"));
+                    errorResponse.setErrorMessage(message);
+                    DebugLogger.log("Parsed error message: " + message, Config.DebugVerbosity.DEFAULT);
+                } else {
+                    errorResponse.setErrorMessage("API error: " + response.statusCode());
+                }
+            }
+        } catch (Exception e) {
+            // If parsing fails, create a generic error message
+            DebugLogger.logError("Failed to parse error response: " + e.getMessage(), e);
+            errorResponse = new ShopResponse();
+            errorResponse.setErrorMessage("API error: " + response.statusCode() + " - " + response.body());
+        }
+        
+        return errorResponse;
+    }
+
+    /**
+     * Uploads the inventory of a session started with {@link #reserveShop}
+     * @param processId The UUID of the reserved shop process
+     * @param twoFactorCode The two-factor authentication code of the reservation
+     * @param inventories The serialized inventories, converted to JSON on the calling thread
+     * @return A CompletableFuture that completes when the API accepted the inventory
+     */
+    public static CompletableFuture<Boolean> uploadInventory(UUID processId, String shopSlug, String twoFactorCode, InventoryList inventories) {
+        DebugLogger.log("Uploading inventory for shop session " + processId, Config.DebugVerbosity.DEFAULT);
+
+        // Create request payload
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("uuid", processId.toString());
+        payload.put("tfaCode", twoFactorCode);
+        payload.put("inventories", inventories);
+
+        // Send HTTP request
+        long jsonStart = System.nanoTime();
+        String jsonPayload = GSON.toJson(payload);
+        ShopMetrics.recordSince(ShopMetrics.Phase.JSON, jsonStart);
+        BackendRouter.Backend backend = BackendRouter.forProcess(processId);
+        URI endpoint = Config.endpoints.inventory().resolve(backend.getBaseUrl(), processId);
+
+        DebugLogger.log("Sending inventory upload to: " + endpoint, Config.DebugVerbosity.DEFAULT);
+
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
+        // Process the request asynchronously
+        return sendInventory("upload", backend, JSON_REQUEST.copy().uri(endpoint), jsonPayload)
+            .whenComplete((response, error) -> finishExchange(exchange, "upload", processId, shopSlug, start, jsonPayload, response))
+            .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_UPLOAD, start);
+                ShopMetrics.countResponse("upload", response.statusCode());
+                if (response.statusCode() == 200) {
+                    DebugLogger.log("Inventory upload accepted for shop session " + processId, Config.DebugVerbosity.DEFAULT);
+                    return true;
+                } else {
+                    String errorMsg;
+                    // Try to parse error message from response body
+                    try {
+                        Map<String, String> errorMap = GSON.fromJson(response.body(), Map.class);
+                        if (errorMap.containsKey("message") || errorMap.containsKey("error")) {
+                            errorMsg = errorMap.getOrDefault("message",
+                                    errorMap.getOrDefault("error", "Unknown error"));
+                            DebugLogger.log("Parsed error message from uploadInventory: " + errorMsg, Config.DebugVerbosity.DEFAULT);
+                        } else {
+                            errorMsg = "API error: " + response.statusCode() + " - " + response.body();
+                        }
+                    } catch (Exception e) {
+                        // If parsing fails, use a generic error message
+                        DebugLogger.logError("Error parsing response in uploadInventory: " + e.getMessage(), e);
+                        errorMsg = "Error from inventory upload API: " + response.statusCode() + " - " + response.body();
+                    }
+
+                    DebugLogger.logError(errorMsg, null);
+                    throw new ErrorResponse(errorMsg, response.statusCode());
+                }
+            }).exceptionally(ex -> {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
+                    // Just rethrow if it's already our custom error
+                    throw errorResponse;
+                }
+
+                ShopMetrics.countError("upload");
+                DebugLogger.logError("Exception during inventory upload API call", ex);
+                throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
+            });
+    }
+
+    /**
+     * Cancels a shop session with the API. Repeated calls for the same process share one request.
      */
     public static CompletableFuture<Boolean> cancelShop(UUID processId, String playerName, String twoFactorCode) {
+        String idempotencyKey = IdempotencyCache.key(processId, "cancel");
+        return IdempotencyCache.getOrSend(idempotencyKey, () -> NotificationBatcher.submit(NotificationBatcher.Operation.CANCEL,
+                processId, twoFactorCode, idempotencyKey, () -> sendCancel(processId, playerName, twoFactorCode, idempotencyKey))
+            .whenComplete((success, error) -> {
+                if (error == null) {
+                    BackendRouter.release(processId);
+                }
+            }));
+    }
+
+    private static CompletableFuture<Boolean> sendCancel(UUID processId, String playerName, String twoFactorCode, String idempotencyKey) {
         // Log cancellation attempt
         DebugLogger.log("Player " + playerName + " cancelled shop session", Config.DebugVerbosity.MINIMAL);
         DebugLogger.log("Player " + playerName + " cancelling shop session: " + processId + " with code: " + twoFactorCode, Config.DebugVerbosity.DEFAULT);
@@ -135,18 +417,25 @@ public class ApiService {
 
         // Send HTTP request
         String jsonPayload = GSON.toJson(payload);
-        String endpoint = Config.apiBaseUrl + Config.shopCancelEndpoint.replace("{uuid}", processId.toString());
+        BackendRouter.Backend backend = BackendRouter.forProcess(processId);
+        URI endpoint = Config.endpoints.cancel().resolve(backend.getBaseUrl(), processId);
 
         DebugLogger.log("Sending cancellation request to: " + endpoint, Config.DebugVerbosity.DEFAULT);
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(endpoint))
-                .header("Content-Type", "application/json")
+        HttpRequest request = JSON_REQUEST.copy()
+                .uri(endpoint)
+                .header(IdempotencyCache.HEADER, idempotencyKey)
                 .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
                 .build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
         // Process the request asynchronously
-        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return send(backend, request, ResponseLimits.bodyHandler("cancel"))
+            .whenComplete((response, error) -> finishExchange(exchange, "cancel", processId, null, start, jsonPayload, response))
             .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_CANCEL, start);
+                ShopMetrics.countResponse("cancel", response.statusCode());
                 if (response.statusCode() == 200) {
                     DebugLogger.log("Received shop cancel response: " + response.body(), Config.DebugVerbosity.ALL);
                     // cancel was successful.
@@ -173,20 +462,36 @@ public class ApiService {
                     throw new ErrorResponse(errorMsg, response.statusCode());
                 }
             }).exceptionally(ex -> {
-                if (ex.getCause() instanceof ErrorResponse) {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
                     // Just rethrow if it's already our custom error
-                    throw (ErrorResponse) ex.getCause();
+                    throw errorResponse;
                 }
                 
+                ShopMetrics.countError("cancel");
                 DebugLogger.logError("Exception during cancel API call", ex);
                 throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
             });
     }
     
     /**
-     * Finishes a shop session with the API
+     * Finishes a shop session with the API. Repeated calls for the same process and round share one request.
+     * @param round How often the player fetched the checkout again, see {@link #checkoutKey}
+     */
+    public static CompletableFuture<DataTypes.InventoryList> finishShop(UUID processId, String playerName, String twoFactorCode, int round) {
+        String idempotencyKey = checkoutKey(processId, round);
+        return IdempotencyCache.getOrSend(idempotencyKey, () -> sendCheckout(processId, playerName, twoFactorCode, idempotencyKey));
+    }
+
+    /**
+     * @return The idempotency key of a checkout. Each round gets its own key, so the API returns the current cart
+     * instead of replaying the result of an earlier checkout.
      */
-    public static CompletableFuture<DataTypes.InventoryList> finishShop(UUID processId, String playerName, String twoFactorCode) {
+    public static String checkoutKey(UUID processId, int round) {
+        return IdempotencyCache.key(processId, round == 0 ? "checkout" : "checkout/" + round);
+    }
+
+    private static CompletableFuture<DataTypes.InventoryList> sendCheckout(UUID processId, String playerName, String twoFactorCode, String idempotencyKey) {
         // Log checkout attempt
         DebugLogger.log("Player " + playerName + " checking out shop session", Config.DebugVerbosity.MINIMAL);
         DebugLogger.log("Player " + playerName + " checking out shop session: " + processId + " with code: " + twoFactorCode, Config.DebugVerbosity.DEFAULT);
@@ -198,21 +503,38 @@ public class ApiService {
         
         // Send HTTP request
         String jsonPayload = GSON.toJson(payload);
-        String endpoint = Config.apiBaseUrl + Config.shopCheckoutEndpoint.replace("{uuid}", processId.toString());
+        BackendRouter.Backend backend = BackendRouter.forProcess(processId);
+        URI endpoint = Config.endpoints.checkout().resolve(backend.getBaseUrl(), processId);
         
         DebugLogger.log("Sending checkout request to: " + endpoint, Config.DebugVerbosity.DEFAULT);
         
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(endpoint))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                .build();
+        HttpRequest.Builder requestBuilder = JSON_REQUEST.copy()
+                .uri(endpoint)
+                .header(IdempotencyCache.HEADER, idempotencyKey)
+                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload));
+        if (Config.acceptCompressedResponses) {
+            // The checkout response carries the whole inventory, which compresses well
+            requestBuilder.header("Accept-Encoding", Compression.GZIP);
+        }
+        HttpRequest request = requestBuilder.build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
         // Process the request asynchronously
-        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return send(backend, request, ResponseLimits.bodyHandler("checkout"))
+            .whenComplete((response, error) -> finishExchange(exchange, "checkout", processId, null, start, jsonPayload, response))
             .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_CHECKOUT, start);
+                ShopMetrics.countResponse("checkout", response.statusCode());
                 if (response.statusCode() == 200) {
                     DebugLogger.log("Received shop finish response: " + response.body(), Config.DebugVerbosity.ALL);
-                    return GSON.fromJson(response.body(), InventoryList.class);
+                    long parseStart = System.nanoTime();
+                    // The inventory is converted to NBT recursively, so its nesting is bounded first
+                    ResponseLimits.checkJson("checkout", response.body(), response.statusCode());
+                    InventoryList inventoryList = GSON.fromJson(response.body(), InventoryList.class);
+                    ShopMetrics.recordSince(ShopMetrics.Phase.PARSE, parseStart);
+                    inventoryList.setResponseBytes(ShopEvents.utf8Length(response.body()));
+                    return inventoryList;
                 } else {
                     String errorMsg;
                         // Try to parse error message from response body
@@ -235,11 +557,13 @@ public class ApiService {
                     throw new ErrorResponse(errorMsg, response.statusCode());
                 }
             }).exceptionally(ex -> {
-                if (ex.getCause() instanceof ErrorResponse) {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
                     // Just rethrow if it's already our custom error
-                    throw (ErrorResponse) ex.getCause();
+                    throw errorResponse;
                 }
                 
+                ShopMetrics.countError("checkout");
                 DebugLogger.logError("Exception during checkout API call", ex);
                 throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
             });
@@ -249,9 +573,21 @@ public class ApiService {
      * Notifies the API that changes were applied
      * @param processId The UUID of the shop process
      * @param twoFactorCode The two-factor authentication code for verification
-     * @return A CompletableFuture that completes when the API confirms the changes were applied
+     * @return A CompletableFuture that completes when the API confirms the changes were applied.
+     * Repeated calls for the same process share one request.
      */
     public static CompletableFuture<Boolean> notifyChangesApplied(UUID processId, String twoFactorCode) {
+        String idempotencyKey = IdempotencyCache.key(processId, "setApplied");
+        return IdempotencyCache.getOrSend(idempotencyKey, () -> NotificationBatcher.submit(NotificationBatcher.Operation.APPLIED,
+                processId, twoFactorCode, idempotencyKey, () -> sendApplied(processId, twoFactorCode, idempotencyKey))
+            .whenComplete((success, error) -> {
+                if (error == null) {
+                    BackendRouter.release(processId);
+                }
+            }));
+    }
+
+    private static CompletableFuture<Boolean> sendApplied(UUID processId, String twoFactorCode, String idempotencyKey) {
         DebugLogger.log("Notifying server that changes were applied", Config.DebugVerbosity.MINIMAL);
         DebugLogger.log("Notifying server that changes for session " + processId + " were applied with code: " + twoFactorCode, Config.DebugVerbosity.DEFAULT);
 
@@ -262,18 +598,25 @@ public class ApiService {
         
         // Send HTTP request
         String jsonPayload = GSON.toJson(payload);
-        String endpoint = Config.apiBaseUrl + Config.shopAppliedEndpoint.replace("{uuid}", processId.toString());
+        BackendRouter.Backend backend = BackendRouter.forProcess(processId);
+        URI endpoint = Config.endpoints.applied().resolve(backend.getBaseUrl(), processId);
         
         DebugLogger.log("Sending notification to: " + endpoint, Config.DebugVerbosity.DEFAULT);
         
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(endpoint))
-                .header("Content-Type", "application/json")
+        HttpRequest request = JSON_REQUEST.copy()
+                .uri(endpoint)
+                .header(IdempotencyCache.HEADER, idempotencyKey)
                 .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
                 .build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
           // Process the request asynchronously and wait for response to validate
-        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        return send(backend, request, ResponseLimits.bodyHandler("setApplied"))
+            .whenComplete((response, error) -> finishExchange(exchange, "setApplied", processId, null, start, jsonPayload, response))
             .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_APPLIED, start);
+                ShopMetrics.countResponse("setApplied", response.statusCode());
                 if (response.statusCode() != 200) {
                     String errorMsg;
                     
@@ -314,13 +657,243 @@ public class ApiService {
                     }
                 }
             }).exceptionally(ex -> {
-                if (ex.getCause() instanceof ErrorResponse) {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
                     // Just rethrow if it's already our custom error
-                    throw (ErrorResponse) ex.getCause();
+                    throw errorResponse;
                 }
                 
+                ShopMetrics.countError("setApplied");
                 DebugLogger.logError("Exception during notification API call", ex);
                 throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
             });
     }
+
+    /**
+     * Sends a batched cancel or setApplied request
+     * @param endpointName The endpoint name used in metrics and recordings
+     * @param backend The backend all processes of the batch were created on
+     * @param endpoint The batch endpoint below the backend's base URL
+     * @param phase The phase the network time is recorded as
+     * @param sessions The uuid, tfaCode and idempotencyKey of every process in the batch
+     * @return A CompletableFuture with one result per process in the same order,
+     * or null if the API does not support batching
+     */
+    static CompletableFuture<List<BatchResult>> sendNotificationBatch(String endpointName, BackendRouter.Backend backend, EndpointTemplate endpoint, ShopMetrics.Phase phase, List<Map<String, Object>> sessions) {
+        URI url = endpoint.resolve(backend.getBaseUrl());
+        // Create request payload
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("sessions", sessions);
+
+        // Send HTTP request
+        String jsonPayload = GSON.toJson(payload);
+
+        DebugLogger.log("Sending batch of " + sessions.size() + " " + endpointName + " requests to: " + url, Config.DebugVerbosity.DEFAULT);
+
+        HttpRequest request = JSON_REQUEST.copy()
+                .uri(url)
+                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
+                .build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
+        // Process the request asynchronously
+        return send(backend, request, ResponseLimits.bodyHandler(endpointName))
+            .whenComplete((response, error) -> finishExchange(exchange, endpointName, null, null, start, jsonPayload, response))
+            .thenApply(response -> {
+                ShopMetrics.recordSince(phase, start);
+                ShopMetrics.countResponse(endpointName, response.statusCode());
+                int status = response.statusCode();
+                if (status == 404 || status == 405 || status == 501) {
+                    return null;
+                }
+                if (status != 200) {
+                    String errorMsg;
+                    // Try to parse error message from response body
+                    try {
+                        Map<String, String> errorMap = GSON.fromJson(response.body(), Map.class);
+                        if (errorMap.containsKey("message") || errorMap.containsKey("error")) {
+                            errorMsg = errorMap.getOrDefault("message",
+                                    errorMap.getOrDefault("error", "Unknown error"));
+                        } else {
+                            errorMsg = "API error: " + status + " - " + response.body();
+                        }
+                    } catch (Exception e) {
+                        // If parsing fails, use a generic error message
+                        errorMsg = "Error from batch API: " + status + " - " + response.body();
+                    }
+
+                    DebugLogger.logError(errorMsg, null);
+                    throw new ErrorResponse(errorMsg, status);
+                }
+
+                DebugLogger.log("Received batch response: " + response.body(), Config.DebugVerbosity.ALL);
+                NotificationBatchResponse batchResponse = GSON.fromJson(response.body(), NotificationBatchResponse.class);
+                // Results are matched to the requests by uuid, so only a missing list fails the whole batch
+                if (batchResponse == null || batchResponse.getSessions() == null) {
+                    DebugLogger.logError("Invalid response: Batch response does not match the batch request", null);
+                    throw new ErrorResponse("Invalid response: Batch response does not match the batch request", status);
+                }
+                return batchResponse.getSessions();
+            }).exceptionally(ex -> {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
+                    // Just rethrow if it's already our custom error
+                    throw errorResponse;
+                }
+
+                ShopMetrics.countError(endpointName);
+                DebugLogger.logError("Exception during batch API call", ex);
+                throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
+            });
+    }
+
+    /**
+     * Asks the API for the status of a shop session. The API may hold the request open until the status changes.
+     * @param processId The UUID of the shop process
+     * @param twoFactorCode The two-factor authentication code for verification
+     * @param waitSeconds How long the API may hold the request before answering with an unchanged status
+     * @return A CompletableFuture with the status, e.g. "open", "ready" or "closed"
+     */
+    public static CompletableFuture<String> pollStatus(UUID processId, String twoFactorCode, int waitSeconds) {
+        // Create request payload
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("uuid", processId.toString());
+        payload.put("tfaCode", twoFactorCode);
+        payload.put("wait", waitSeconds);
+
+        // Send HTTP request
+        String jsonPayload = GSON.toJson(payload);
+        BackendRouter.Backend backend = BackendRouter.forProcess(processId);
+        URI endpoint = Config.endpoints.status().resolve(backend.getBaseUrl(), processId);
+
+        DebugLogger.log("Sending status request to: " + endpoint, Config.DebugVerbosity.ALL);
+
+        HttpRequest request = JSON_REQUEST.copy()
+                .uri(endpoint)
+                .timeout(Duration.ofSeconds(waitSeconds + 10L))
+                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
+                .build();
+        long start = System.nanoTime();
+        ShopEvents.HttpExchangeEvent exchange = new ShopEvents.HttpExchangeEvent();
+        exchange.begin();
+        // Process the request asynchronously
+        return send(backend, request, ResponseLimits.bodyHandler("status"), false)
+            .whenComplete((response, error) -> finishExchange(exchange, "status", processId, null, start, jsonPayload, response))
+            .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_STATUS, start);
+                ShopMetrics.countResponse("status", response.statusCode());
+                if (response.statusCode() != 200) {
+                    DebugLogger.log("Status request for session " + processId + " failed: " + response.statusCode(), Config.DebugVerbosity.DEFAULT);
+                    throw new ErrorResponse("API error: " + response.statusCode() + " - " + response.body(), response.statusCode());
+                }
+                Map<String, String> responseMap = GSON.fromJson(response.body(), Map.class);
+                String status = responseMap != null ? responseMap.get("status") : null;
+                if (status == null) {
+                    throw new ErrorResponse("Invalid response: Missing status in status response", response.statusCode());
+                }
+                return status;
+            }).exceptionally(ex -> {
+                ErrorResponse errorResponse = ResponseLimits.findErrorResponse(ex);
+                if (errorResponse != null) {
+                    // Just rethrow if it's already our custom error
+                    throw errorResponse;
+                }
+
+                ShopMetrics.countError("status");
+                throw new ErrorResponse("API communication error: Failed to connect to shop server", 0);
+            });
+    }
+
+    /**
+     * Sends a lightweight request to the health endpoint. It opens the connection if there is none,
+     * and keeps an idle one from being closed.
+     * @param backend The backend to probe
+     * @return A CompletableFuture with the status code of the response
+     */
+    public static CompletableFuture<Integer> probeHealth(BackendRouter.Backend backend) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(Config.endpoints.health().resolve(backend.getBaseUrl()))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+        long start = System.nanoTime();
+        return send(backend, request, HttpResponse.BodyHandlers.discarding())
+            .thenApply(response -> {
+                ShopMetrics.recordSince(ShopMetrics.Phase.API_HEALTH, start);
+                return response.statusCode();
+            });
+    }
+
+    /**
+     * Posts a request body that carries inventories, gzip compressed if {@code compressRequests} is enabled
+     * and the body is large enough. A backend that answers 415 gets the request again uncompressed,
+     * and no compressed requests after that.
+     * @param endpointName The endpoint name used in metrics
+     * @param builder The request without a body
+     */
+    private static CompletableFuture<HttpResponse<String>> sendInventory(String endpointName, BackendRouter.Backend backend, HttpRequest.Builder builder, String jsonPayload) {
+        // Length in chars is a lower bound of the length in bytes, close enough for JSON
+        if (!Config.compressRequests || !backend.acceptsCompressedRequests() || jsonPayload.length() < Config.compressMinSize) {
+            return send(backend, builder.POST(HttpRequest.BodyPublishers.ofString(jsonPayload)).build(), ResponseLimits.bodyHandler(endpointName));
+        }
+        HttpRequest.Builder uncompressed = builder.copy();
+        HttpRequest request = builder
+                .header("Content-Encoding", Compression.GZIP)
+                .POST(Compression.gzipPublisher(jsonPayload))
+                .build();
+        return send(backend, request, ResponseLimits.bodyHandler(endpointName))
+            .thenCompose(response -> {
+                if (response.statusCode() != 415) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                backend.rejectCompressedRequests();
+                return send(backend, uncompressed.POST(HttpRequest.BodyPublishers.ofString(jsonPayload)).build(), ResponseLimits.bodyHandler(endpointName));
+            });
+    }
+
+    private static <T> CompletableFuture<HttpResponse<T>> send(BackendRouter.Backend backend, HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        return send(backend, request, handler, true);
+    }
+
+    /**
+     * Sends a request to a backend and records its outcome, so a failing backend is ejected
+     * @param countOutstanding false for long-polls, which would make their backend look busy to least-outstanding balancing
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> send(BackendRouter.Backend backend, HttpRequest request, HttpResponse.BodyHandler<T> handler, boolean countOutstanding) {
+        if (countOutstanding) {
+            backend.begin();
+        }
+        return httpClient.sendAsync(request, handler).whenComplete((response, error) -> {
+            boolean success = error == null && response.statusCode() < 500;
+            if (countOutstanding) {
+                backend.end(success);
+            } else {
+                backend.record(success);
+            }
+        });
+    }
+
+    /**
+     * Commits the flight recorder event of a finished HTTP exchange, and records it if traffic recording is enabled
+     * @param startNanos The value of {@link System#nanoTime()} when the request was sent
+     * @param response The response, or null if the request failed
+     */
+    private static void finishExchange(ShopEvents.HttpExchangeEvent event, String endpoint, UUID processId, String shopSlug, long startNanos, String requestBody, HttpResponse<String> response) {
+        event.end();
+        TrafficRecorder.record(endpoint, processId, shopSlug, startNanos, response != null ? response.statusCode() : 0,
+                requestBody, response != null ? response.body() : null);
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.endpoint = endpoint;
+        event.processId = processId != null ? processId.toString() : null;
+        event.shopSlug = shopSlug;
+        event.requestBytes = ShopEvents.utf8Length(requestBody);
+        if (response != null) {
+            event.statusCode = response.statusCode();
+            event.responseBytes = ShopEvents.utf8Length(response.body());
+        }
+        event.commit();
+    }
 }
@@ -0,0 +1,276 @@
+package info.rusty.webshoplink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the shop API backend for each request.
+ *
+ * New sessions go to a backend of their shop's route, or of the default pool of {@code apiBackends}, picked by
+ * weighted round-robin or by the fewest outstanding requests. Every later request of a session goes to the backend
+ * that created it. A backend that fails {@code backendEjectFailures} requests in a row, by a connection error or a
+ * 5xx status, is skipped for {@code backendEjectTime} seconds, unless every backend of the pool is skipped.
+ */
+public class BackendRouter {
+    private static final long BINDING_GRACE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int PRUNE_THRESHOLD = 1024;
+
+    /**
+     * A shop API base URL and its health
+     */
+    public static class Backend {
+        private final String baseUrl;
+        private final int weight;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // Guarded by the pool
+        private int currentWeight;
+        // Guarded by this
+        private int consecutiveFailures;
+        private volatile long ejectedUntilNanos;
+        private volatile boolean ejected;
+        private volatile boolean rejectsCompressedRequests;
+
+        Backend(String baseUrl, int weight) {
+            this.baseUrl = baseUrl;
+            this.weight = weight;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public boolean isEjected() {
+            return ejected && System.nanoTime() - ejectedUntilNanos < 0;
+        }
+
+        /**
+         * @return false once the backend answered a gzip compressed request with 415
+         */
+        public boolean acceptsCompressedRequests() {
+            return !rejectsCompressedRequests;
+        }
+
+        /**
+         * Sends uncompressed requests to this backend from now on
+         */
+        void rejectCompressedRequests() {
+            if (!rejectsCompressedRequests) {
+                rejectsCompressedRequests = true;
+                DebugLogger.log("Shop API backend " + baseUrl + " does not accept compressed requests, sending them uncompressed", Config.DebugVerbosity.MINIMAL);
+            }
+        }
+
+        /**
+         * Counts a request as outstanding until {@link #end} is called
+         */
+        void begin() {
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * Ends a request started with {@link #begin} and records its outcome
+         */
+        void end(boolean success) {
+            outstanding.decrementAndGet();
+            record(success);
+        }
+
+        /**
+         * Records the outcome of a request for passive ejection
+         */
+        synchronized void record(boolean success) {
+            if (success) {
+                consecutiveFailures = 0;
+                if (ejected) {
+                    ejected = false;
+                    DebugLogger.log("Shop API backend " + baseUrl + " is answering again", Config.DebugVerbosity.MINIMAL);
+                }
+                return;
+            }
+            if (++consecutiveFailures >= Config.backendEjectFailures && !isEjected()) {
+                consecutiveFailures = 0;
+                ejectedUntilNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.backendEjectTime);
+                ejected = true;
+                ShopMetrics.increment("webshoplink_backend_ejections_total{backend=\"" + baseUrl + "\"}");
+                DebugLogger.logError("Shop API backend " + baseUrl + " failed repeatedly, skipping it for " + Config.backendEjectTime + " seconds", null);
+            }
+        }
+    }
+
+    /**
+     * The backends one route balances between
+     */
+    static class Pool {
+        private final List<Backend> backends;
+
+        Pool(List<Backend> backends) {
+            this.backends = backends;
+        }
+
+        /**
+         * @return The backend for the next request
+         */
+        Backend pick() {
+            if (backends.size() == 1) {
+                return backends.get(0);
+            }
+            List<Backend> available = new ArrayList<>(backends.size());
+            for (Backend backend : backends) {
+                if (!backend.isEjected()) {
+                    available.add(backend);
+                }
+            }
+            if (available.isEmpty()) {
+                // Failing requests are better than sending none at all
+                available = backends;
+            }
+            if (Config.apiBalancing == Config.Balancing.LEAST_OUTSTANDING) {
+                return leastOutstanding(available);
+            }
+            return roundRobin(available);
+        }
+
+        // Smooth weighted round-robin, spreads the picks of a heavy backend instead of sending them in a row
+        private synchronized Backend roundRobin(List<Backend> available) {
+            int totalWeight = 0;
+            Backend best = null;
+            for (Backend backend : available) {
+                backend.currentWeight += backend.weight;
+                totalWeight += backend.weight;
+                if (best == null || backend.currentWeight > best.currentWeight) {
+                    best = backend;
+                }
+            }
+            best.currentWeight -= totalWeight;
+            return best;
+        }
+
+        private static Backend leastOutstanding(List<Backend> available) {
+            Backend best = null;
+            double bestLoad = Double.MAX_VALUE;
+            for (Backend backend : available) {
+                double load = (backend.getOutstanding() + 1.0) / backend.weight;
+                if (load < bestLoad) {
+                    best = backend;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The backend of a session, and when the session was created
+     */
+    private record Binding(Backend backend, long createdNanos) {
+    }
+
+    private static final Map<UUID, Binding> BINDINGS = new ConcurrentHashMap<>();
+    private static volatile Pool defaultPool;
+    private static volatile Map<String, Pool> shopPools = Map.of();
+    private static volatile Collection<Backend> backends = List.of();
+
+    /**
+     * Builds the pools from the configuration. Sessions keep the backend they were created on.
+     */
+    public static synchronized void configure() {
+        Map<String, Backend> byUrl = new LinkedHashMap<>();
+        List<Backend> defaults = new ArrayList<>();
+        for (String spec : Config.apiBackends == null || Config.apiBackends.isEmpty() ? List.of(Config.apiBaseUrl) : Config.apiBackends) {
+            defaults.add(backend(byUrl, spec));
+        }
+        Map<String, Pool> pools = new HashMap<>();
+        for (Map.Entry<String, List<String>> route : (Config.shopRoutes != null ? Config.shopRoutes : Map.<String, List<String>>of()).entrySet()) {
+            List<Backend> routeBackends = new ArrayList<>();
+            for (String spec : route.getValue()) {
+                routeBackends.add(backend(byUrl, spec));
+            }
+            pools.put(route.getKey(), new Pool(routeBackends));
+        }
+        defaultPool = new Pool(defaults);
+        shopPools = pools;
+        backends = Collections.unmodifiableCollection(byUrl.values());
+    }
+
+    // A backend listed in several routes is shared, so its health is tracked once
+    private static Backend backend(Map<String, Backend> byUrl, String spec) {
+        String[] parts = spec.trim().split("\\s+");
+        int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        return byUrl.computeIfAbsent(parts[0], url -> new Backend(url, weight));
+    }
+
+    /**
+     * @return All configured backends
+     */
+    public static Collection<Backend> getBackends() {
+        ensureConfigured();
+        return backends;
+    }
+
+    /**
+     * @return The pool new sessions of a shop are created in
+     */
+    static Pool poolFor(String shopSlug) {
+        ensureConfigured();
+        Pool pool = shopSlug != null ? shopPools.get(shopSlug) : null;
+        return pool != null ? pool : defaultPool;
+    }
+
+    /**
+     * @return The backend for a new session of a shop
+     */
+    public static Backend forShop(String shopSlug) {
+        return poolFor(shopSlug).pick();
+    }
+
+    /**
+     * @return The backend that created a session, or a backend of the default pool if it is unknown
+     */
+    public static Backend forProcess(UUID processId) {
+        Binding binding = BINDINGS.get(processId);
+        return binding != null ? binding.backend() : poolFor(null).pick();
+    }
+
+    /**
+     * Remembers the backend that created a session, so its later requests go there too
+     */
+    public static void bind(UUID processId, Backend backend) {
+        if (BINDINGS.size() >= PRUNE_THRESHOLD) {
+            prune();
+        }
+        BINDINGS.put(processId, new Binding(backend, System.nanoTime()));
+    }
+
+    /**
+     * Forgets the backend of a session that has ended
+     */
+    public static void release(UUID processId) {
+        BINDINGS.remove(processId);
+    }
+
+    // Sessions can end without a final request, e.g. when a player starts a new one while the API is down
+    private static void prune() {
+        long now = System.nanoTime();
+        BINDINGS.entrySet().removeIf(entry -> now - entry.getValue().createdNanos() > BINDING_GRACE_NANOS
+                && ShopCommands.getActiveShopProcess(entry.getKey()) == null);
+    }
+
+    private static void ensureConfigured() {
+        if (defaultPool == null) {
+            configure();
+        }
+    }
+}
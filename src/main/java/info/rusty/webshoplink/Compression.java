@@ -0,0 +1,67 @@
+package info.rusty.webshoplink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of request bodies and decompression of response bodies.
+ * JSON-expanded NBT is very repetitive, so inventories with many shulker boxes shrink several times.
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+
+    /**
+     * Creates a body publisher that compresses the text when the HTTP client sends it, on the client's thread
+     */
+    public static HttpRequest.BodyPublisher gzipPublisher(String text) {
+        return HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(gzip(text)));
+    }
+
+    /**
+     * Compresses text as UTF-8 with gzip
+     */
+    public static byte[] gzip(String text) {
+        long start = System.nanoTime();
+        byte[] input = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+        // The fastest level already gets most of the gain on JSON, and keeps large inventories cheap
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output, 8192) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        }) {
+            gzip.write(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] compressed = output.toByteArray();
+        ShopMetrics.recordSince(ShopMetrics.Phase.COMPRESS, start);
+        ShopMetrics.add("webshoplink_compression_input_bytes_total", input.length);
+        ShopMetrics.add("webshoplink_compression_output_bytes_total", compressed.length);
+        return compressed;
+    }
+
+    /**
+     * Decompresses a gzip body, reading at most one byte more than the limit, so a small body
+     * that inflates to gigabytes is cut off instead of filling the heap
+     * @return The decompressed bytes, more than maxBytes of them if the body was cut off
+     */
+    public static byte[] gunzip(byte[] compressed, int maxBytes) {
+        long start = System.nanoTime();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed), 8192)) {
+            byte[] decompressed = input.readNBytes(maxBytes < Integer.MAX_VALUE ? maxBytes + 1 : maxBytes);
+            ShopMetrics.recordSince(ShopMetrics.Phase.DECOMPRESS, start);
+            return decompressed;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Invalid gzip response body", e);
+        }
+    }
+}
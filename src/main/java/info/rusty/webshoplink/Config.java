@@ -8,8 +8,11 @@ import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.event.config.ModConfigEvent;
 import net.minecraftforge.registries.ForgeRegistries;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -26,6 +29,15 @@ public class Config {
             .comment("Endpoint for initiating shop processes")
             .define("shopEndpoint", "/initiate");
 
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_RESERVE_ENDPOINT = BUILDER
+            .comment("Endpoint for reserving shop processes before the inventory is uploaded, so the link is shown without waiting for the upload",
+                    "Leave empty to send the inventory with the initiate request")
+            .define("shopReserveEndpoint", "");
+
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_INVENTORY_ENDPOINT = BUILDER
+            .comment("Endpoint the inventory of a reserved shop process is uploaded to")
+            .define("shopInventoryEndpoint", "/{uuid}/inventory");
+
     private static final ForgeConfigSpec.ConfigValue<String> SHOP_CANCEL_ENDPOINT = BUILDER
             .comment("Endpoint for cancelling shop processes")
             .define("shopCancelEndpoint", "/{uuid}/cancel");
@@ -38,6 +50,157 @@ public class Config {
             .comment("Endpoint for marking shop processes as applied")
             .define("shopAppliedEndpoint", "/{uuid}/setApplied");
                 
+    // Initiate batching configuration
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_BATCH_INITIATE_ENDPOINT = BUILDER
+            .comment("Endpoint that initiates several shop processes with one request, used when many players open a shop at once",
+                    "Leave empty to send one initiate request per player")
+            .define("shopBatchInitiateEndpoint", "");
+
+    private static final ForgeConfigSpec.IntValue INITIATE_BATCH_WINDOW = BUILDER
+            .comment("Milliseconds initiate requests are collected before they are sent as one batch, 50 collects a whole server tick")
+            .defineInRange("initiateBatchWindow", 5, 1, 1000);
+
+    private static final ForgeConfigSpec.IntValue INITIATE_BATCH_MAX_SIZE = BUILDER
+            .comment("Maximum number of initiate requests in one batch, a full batch is sent right away")
+            .defineInRange("initiateBatchMaxSize", 32, 2, 256);
+
+    // Backend routing configuration
+    private static final ForgeConfigSpec.ConfigValue<List<? extends String>> API_BACKENDS = BUILDER
+            .comment("Base URLs of several shop API backends in the format \"<url>\" or \"<url> <weight>\". Leave empty to use apiBaseUrl only")
+            .defineListAllowEmpty("apiBackends", List.of(), Config::validateBackend);
+
+    private static final ForgeConfigSpec.EnumValue<Balancing> API_BALANCING = BUILDER
+            .comment("How new shop processes are spread over the backends: ROUND_ROBIN (by weight) or LEAST_OUTSTANDING (fewest requests in flight per weight)")
+            .defineEnum("apiBalancing", Balancing.ROUND_ROBIN);
+
+    private static final ForgeConfigSpec.ConfigValue<List<? extends String>> SHOP_ROUTES = BUILDER
+            .comment("Per-shop backends in the format \"<shopSlug>=<url> [<weight>],<url> [<weight>],...\". Shops without a route use apiBackends")
+            .defineListAllowEmpty("shopRoutes", List.of(), Config::validateShopRoute);
+
+    private static final ForgeConfigSpec.IntValue BACKEND_EJECT_FAILURES = BUILDER
+            .comment("Consecutive failed requests after which a backend is skipped for new shop processes")
+            .defineInRange("backendEjectFailures", 3, 1, 100);
+
+    private static final ForgeConfigSpec.IntValue BACKEND_EJECT_TIME = BUILDER
+            .comment("Seconds a failing backend is skipped")
+            .defineInRange("backendEjectTime", 30, 1, 3600);
+
+    // Connection configuration
+    private static final ForgeConfigSpec.IntValue HTTP_THREADS = BUILDER
+            .comment("Threads of the executor that handles API responses, 0 uses the HTTP client's default executor")
+            .defineInRange("httpThreads", 4, 0, 64);
+
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_HEALTH_ENDPOINT = BUILDER
+            .comment("Endpoint probed on server start and periodically, so the first /shop finds an open connection and outages show up in the log",
+                    "Any response below 500 counts as healthy. Leave empty to disable probes")
+            .define("shopHealthEndpoint", "/health");
+
+    private static final ForgeConfigSpec.IntValue HEALTH_CHECK_INTERVAL = BUILDER
+            .comment("Seconds between health probes, 0 only probes on server start")
+            .defineInRange("healthCheckInterval", 30, 0, 3600);
+
+    private static final ForgeConfigSpec.BooleanValue COMPRESS_REQUESTS = BUILDER
+            .comment("Gzip compress inventory uploads (initiate, batched initiate and upload requests) with Content-Encoding: gzip",
+                    "A backend that answers 415 gets uncompressed requests from then on")
+            .define("compressRequests", false);
+
+    private static final ForgeConfigSpec.IntValue COMPRESS_MIN_SIZE = BUILDER
+            .comment("Request bodies smaller than this many bytes are sent uncompressed")
+            .defineInRange("compressMinSize", 4096, 0, Integer.MAX_VALUE);
+
+    private static final ForgeConfigSpec.BooleanValue ACCEPT_COMPRESSED_RESPONSES = BUILDER
+            .comment("Ask for gzip compressed checkout responses with Accept-Encoding: gzip. Backends that don't compress answer as before")
+            .define("acceptCompressedResponses", true);
+
+    // Response limits configuration
+    private static final ForgeConfigSpec.IntValue MAX_RESPONSE_BYTES = BUILDER
+            .comment("Largest API response body in bytes, after decompression. Larger responses are aborted while they arrive")
+            .defineInRange("maxResponseBytes", 16 * 1024 * 1024, 64 * 1024, 1024 * 1024 * 1024);
+
+    private static final ForgeConfigSpec.IntValue MAX_RESPONSE_DEPTH = BUILDER
+            .comment("Deepest nesting of objects and arrays accepted in a checkout response")
+            .defineInRange("maxResponseDepth", 128, 16, 512);
+
+    private static final ForgeConfigSpec.IntValue MAX_RESPONSE_ELEMENTS = BUILDER
+            .comment("Most objects, arrays and values accepted in a checkout response")
+            .defineInRange("maxResponseElements", 1_000_000, 1000, 100_000_000);
+
+    // Notification batching configuration
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_BATCH_CANCEL_ENDPOINT = BUILDER
+            .comment("Endpoint that cancels several shop processes with one request. Leave empty to send one cancel request per process")
+            .define("shopBatchCancelEndpoint", "");
+
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_BATCH_APPLIED_ENDPOINT = BUILDER
+            .comment("Endpoint that marks several shop processes as applied with one request. Leave empty to send one request per process")
+            .define("shopBatchAppliedEndpoint", "");
+
+    private static final ForgeConfigSpec.IntValue NOTIFICATION_BATCH_INTERVAL = BUILDER
+            .comment("Maximum milliseconds a cancel or setApplied request waits for its batch. Players confirming a purchase wait for this too")
+            .defineInRange("notificationBatchInterval", 100, 1, 5000);
+
+    private static final ForgeConfigSpec.IntValue NOTIFICATION_BATCH_MAX_SIZE = BUILDER
+            .comment("Maximum number of processes in one batched cancel or setApplied request, a full batch is sent right away")
+            .defineInRange("notificationBatchMaxSize", 100, 2, 1000);
+
+    // Webhook configuration
+    private static final ForgeConfigSpec.IntValue WEBHOOK_PORT = BUILDER
+            .comment("Port of the listener the shop calls when a cart is finalized, so the confirm prompt appears without /shopFinish. 0 disables the listener")
+            .defineInRange("webhookPort", 0, 0, 65535);
+
+    private static final ForgeConfigSpec.ConfigValue<String> WEBHOOK_BIND_ADDRESS = BUILDER
+            .comment("Address the webhook listener binds to")
+            .define("webhookBindAddress", "0.0.0.0");
+
+    // Status polling configuration
+    private static final ForgeConfigSpec.ConfigValue<String> SHOP_STATUS_ENDPOINT = BUILDER
+            .comment("Endpoint polled for the status of open shop processes, so the confirm prompt appears without /shopFinish",
+                    "For servers that can't receive webhooks. Leave empty to disable polling")
+            .define("shopStatusEndpoint", "");
+
+    private static final ForgeConfigSpec.IntValue STATUS_POLL_WAIT = BUILDER
+            .comment("Seconds the API may hold a status request open before answering with an unchanged status")
+            .defineInRange("statusPollWait", 25, 1, 120);
+
+    private static final ForgeConfigSpec.IntValue STATUS_POLL_MAX_IN_FLIGHT = BUILDER
+            .comment("Maximum number of status requests in flight at once, further open processes wait for their turn")
+            .defineInRange("statusPollMaxInFlight", 64, 1, 1024);
+
+    // Shop filter configuration
+    private static final ForgeConfigSpec.ConfigValue<List<? extends String>> MONEY_ITEMS = BUILDER
+            .comment("Items used as currency, available to shop filters through the \"money\" rule")
+            .defineListAllowEmpty("moneyItems", List.of(), Config::validateItemName);
+
+    private static final ForgeConfigSpec.ConfigValue<List<? extends String>> SHOP_FILTERS = BUILDER
+            .comment("Per-shop inventory filters in the format \"<shopSlug>=<rule>,<rule>,...\"",
+                    "Rules: inventory, echest, money, <item id>, #<item tag>. Shops without a filter receive the full inventory and ender chest")
+            .defineListAllowEmpty("shopFilters", List.of(), Config::validateShopFilter);
+
+    // Metrics configuration
+    private static final ForgeConfigSpec.ConfigValue<String> METRICS_FILE = BUILDER
+            .comment("File the OpenMetrics text dump is written to, relative to the server directory")
+            .define("metricsFile", "webshoplink-metrics.prom");
+
+    private static final ForgeConfigSpec.IntValue METRICS_DUMP_INTERVAL = BUILDER
+            .comment("Interval in seconds between metrics file dumps, 0 disables the periodic dump")
+            .defineInRange("metricsDumpInterval", 0, 0, 86400);
+
+    private static final ForgeConfigSpec.DoubleValue TICK_BUDGET_WARNING = BUILDER
+            .comment("Log a warning when shop work takes more than this percentage of a 50 ms server tick, 0 disables the warning")
+            .defineInRange("tickBudgetWarning", 10.0, 0.0, 100.0);
+
+    // Traffic recording configuration
+    private static final ForgeConfigSpec.BooleanValue RECORD_TRAFFIC = BUILDER
+            .comment("Record anonymized shop API requests and responses for offline replay")
+            .define("recordTraffic", false);
+
+    private static final ForgeConfigSpec.ConfigValue<String> RECORD_TRAFFIC_FILE = BUILDER
+            .comment("Gzip compressed file the traffic is appended to, relative to the server directory")
+            .define("recordTrafficFile", "webshoplink-traffic.jsonl.gz");
+
+    private static final ForgeConfigSpec.IntValue RECORD_TRAFFIC_MAX_SIZE = BUILDER
+            .comment("Maximum uncompressed size in megabytes recorded per server run")
+            .defineInRange("recordTrafficMaxSize", 100, 1, 10240);
+
     // Debug configuration
     private static final ForgeConfigSpec.BooleanValue DEBUG_ENABLED = BUILDER
             .comment("Enable debug logging")
@@ -51,13 +214,67 @@ public class Config {
 
     public static String apiBaseUrl;
     public static String shopEndpoint;
+    public static String shopReserveEndpoint;
+    public static String shopInventoryEndpoint;
     public static String shopCancelEndpoint;
     public static String shopCheckoutEndpoint;
     public static String shopAppliedEndpoint;
+    public static String shopBatchInitiateEndpoint;
+    public static int initiateBatchWindow;
+    public static int initiateBatchMaxSize;
+    public static List<String> apiBackends;
+    public static Balancing apiBalancing;
+    public static Map<String, List<String>> shopRoutes;
+    public static int backendEjectFailures;
+    public static int backendEjectTime;
+    public static int httpThreads;
+    public static String shopHealthEndpoint;
+    public static int healthCheckInterval;
+    public static boolean compressRequests;
+    public static int compressMinSize;
+    public static boolean acceptCompressedResponses;
+    public static int maxResponseBytes;
+    public static int maxResponseDepth;
+    public static int maxResponseElements;
+    public static String shopBatchCancelEndpoint;
+    public static String shopBatchAppliedEndpoint;
+    public static int notificationBatchInterval;
+    public static int notificationBatchMaxSize;
+    public static int webhookPort;
+    public static String webhookBindAddress;
+    public static String shopStatusEndpoint;
+    public static int statusPollWait;
+    public static int statusPollMaxInFlight;
     public static Set<Item> moneyItems;
+    public static Map<String, InventoryFilter> shopFilters;
+    public static String metricsFile;
+    public static int metricsDumpInterval;
+    public static double tickBudgetWarning;
+    public static boolean recordTraffic;
+    public static String recordTrafficFile;
+    public static int recordTrafficMaxSize;
     public static boolean debugEnabled;
     public static DebugVerbosity debugVerbosity;
+    // Compiled from the endpoint settings above, replaced as a whole when the config is reloaded
+    public static volatile Endpoints endpoints = compileEndpoints();
+
+    /**
+     * The compiled endpoint settings
+     */
+    public record Endpoints(EndpointTemplate initiate, EndpointTemplate reserve, EndpointTemplate inventory,
+                            EndpointTemplate cancel, EndpointTemplate checkout, EndpointTemplate applied,
+                            EndpointTemplate status, EndpointTemplate health, EndpointTemplate batchInitiate,
+                            EndpointTemplate batchCancel, EndpointTemplate batchApplied) {
+    }
     
+    /**
+     * How new shop processes are spread over the backends
+     */
+    public enum Balancing {
+        ROUND_ROBIN,        // In turn, in proportion to the weights
+        LEAST_OUTSTANDING   // To the backend with the fewest requests in flight per weight
+    }
+
     /**
      * Debug verbosity levels
      */
@@ -71,16 +288,118 @@ public class Config {
         return obj instanceof final String itemName && ForgeRegistries.ITEMS.containsKey(ResourceLocation.tryParse(itemName));
     }
 
+    /**
+     * Compiles the endpoint settings. Called on every config load, and by tools that set the settings directly.
+     */
+    public static Endpoints compileEndpoints() {
+        return new Endpoints(EndpointTemplate.compile(shopEndpoint), EndpointTemplate.compile(shopReserveEndpoint),
+                EndpointTemplate.compile(shopInventoryEndpoint), EndpointTemplate.compile(shopCancelEndpoint),
+                EndpointTemplate.compile(shopCheckoutEndpoint), EndpointTemplate.compile(shopAppliedEndpoint),
+                EndpointTemplate.compile(shopStatusEndpoint), EndpointTemplate.compile(shopHealthEndpoint),
+                EndpointTemplate.compile(shopBatchInitiateEndpoint), EndpointTemplate.compile(shopBatchCancelEndpoint),
+                EndpointTemplate.compile(shopBatchAppliedEndpoint));
+    }
+
+    private static boolean validateBackend(final Object obj) {
+        return obj instanceof final String backend && backend.trim().matches("\\S+(\\s+[1-9][0-9]*)?");
+    }
+
+    private static boolean validateShopRoute(final Object obj) {
+        if (!(obj instanceof final String route) || route.indexOf('=') <= 0) {
+            return false;
+        }
+        return Arrays.stream(route.substring(route.indexOf('=') + 1).split(",")).allMatch(Config::validateBackend);
+    }
+
+    private static boolean validateShopFilter(final Object obj) {
+        return obj instanceof final String filter && filter.indexOf('=') > 0;
+    }
+
     @SubscribeEvent
     static void onLoad(final ModConfigEvent event) {
         apiBaseUrl = API_BASE_URL.get();
         shopEndpoint = SHOP_ENDPOINT.get();
+        shopReserveEndpoint = SHOP_RESERVE_ENDPOINT.get();
+        shopInventoryEndpoint = SHOP_INVENTORY_ENDPOINT.get();
         shopCancelEndpoint = SHOP_CANCEL_ENDPOINT.get();
         shopCheckoutEndpoint = SHOP_CHECKOUT_ENDPOINT.get();
         shopAppliedEndpoint = SHOP_APPLIED_ENDPOINT.get();
+
+        // Load initiate batching configuration
+        shopBatchInitiateEndpoint = SHOP_BATCH_INITIATE_ENDPOINT.get();
+        initiateBatchWindow = INITIATE_BATCH_WINDOW.get();
+        initiateBatchMaxSize = INITIATE_BATCH_MAX_SIZE.get();
+
+        // Load backend routing configuration
+        apiBackends = List.copyOf(API_BACKENDS.get());
+        apiBalancing = API_BALANCING.get();
+        Map<String, List<String>> routes = new HashMap<>();
+        for (String route : SHOP_ROUTES.get()) {
+            int separator = route.indexOf('=');
+            routes.put(route.substring(0, separator).trim(), Arrays.stream(route.substring(separator + 1).split(","))
+                    .map(String::trim)
+                    .filter(backend -> !backend.isEmpty())
+                    .toList());
+        }
+        shopRoutes = Collections.unmodifiableMap(routes);
+        backendEjectFailures = BACKEND_EJECT_FAILURES.get();
+        backendEjectTime = BACKEND_EJECT_TIME.get();
+
+        // Load connection configuration
+        httpThreads = HTTP_THREADS.get();
+        shopHealthEndpoint = SHOP_HEALTH_ENDPOINT.get();
+        healthCheckInterval = HEALTH_CHECK_INTERVAL.get();
+        compressRequests = COMPRESS_REQUESTS.get();
+        compressMinSize = COMPRESS_MIN_SIZE.get();
+        acceptCompressedResponses = ACCEPT_COMPRESSED_RESPONSES.get();
+
+        // Load response limits configuration
+        maxResponseBytes = MAX_RESPONSE_BYTES.get();
+        maxResponseDepth = MAX_RESPONSE_DEPTH.get();
+        maxResponseElements = MAX_RESPONSE_ELEMENTS.get();
+
+        // Load notification batching configuration
+        shopBatchCancelEndpoint = SHOP_BATCH_CANCEL_ENDPOINT.get();
+        shopBatchAppliedEndpoint = SHOP_BATCH_APPLIED_ENDPOINT.get();
+        notificationBatchInterval = NOTIFICATION_BATCH_INTERVAL.get();
+        notificationBatchMaxSize = NOTIFICATION_BATCH_MAX_SIZE.get();
+
+        // Load webhook configuration
+        webhookPort = WEBHOOK_PORT.get();
+        webhookBindAddress = WEBHOOK_BIND_ADDRESS.get();
+
+        // Load status polling configuration
+        shopStatusEndpoint = SHOP_STATUS_ENDPOINT.get();
+        statusPollWait = STATUS_POLL_WAIT.get();
+        statusPollMaxInFlight = STATUS_POLL_MAX_IN_FLIGHT.get();
+
+        // Load shop filter configuration
+        moneyItems = MONEY_ITEMS.get().stream()
+                .map(itemName -> ForgeRegistries.ITEMS.getValue(new ResourceLocation(itemName)))
+                .collect(Collectors.toSet());
+        Map<String, InventoryFilter> filters = new HashMap<>();
+        for (String filter : SHOP_FILTERS.get()) {
+            int separator = filter.indexOf('=');
+            filters.put(filter.substring(0, separator).trim(), InventoryFilter.parse(filter.substring(separator + 1)));
+        }
+        shopFilters = Collections.unmodifiableMap(filters);
+
+        // Load metrics configuration
+        metricsFile = METRICS_FILE.get();
+        metricsDumpInterval = METRICS_DUMP_INTERVAL.get();
+        tickBudgetWarning = TICK_BUDGET_WARNING.get();
+
+        // Load traffic recording configuration
+        recordTraffic = RECORD_TRAFFIC.get();
+        recordTrafficFile = RECORD_TRAFFIC_FILE.get();
+        recordTrafficMaxSize = RECORD_TRAFFIC_MAX_SIZE.get();
                 
         // Load debug configuration
         debugEnabled = DEBUG_ENABLED.get();
         debugVerbosity = DEBUG_VERBOSITY.get();
+
+        // Apply the endpoint and backend settings, this also runs when the config file is edited while the server runs
+        endpoints = compileEndpoints();
+        BackendRouter.configure();
     }
 }
@@ -8,8 +8,11 @@ import net.minecraft.world.item.ItemStack;
 import org.slf4j.Logger;
 import com.mojang.logging.LogUtils;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Contains all data classes used in the Webshoplink mod
@@ -51,23 +54,62 @@ public class DataTypes {
     }
 
     /**
-     * Represents a shop process
+     * The lifecycle of a shop process
+     */
+    public enum ShopState {
+        INITIATING,     // Requested from the API, no link yet
+        OPEN,           // The player is shopping in the browser
+        CHECKED_OUT,    // The purchase was fetched and waits for confirmation
+        APPLYING,       // The purchase is being confirmed with the API and applied
+        APPLIED,        // Done, the purchase is in the player's containers
+        CANCELLED,      // Cancelled by the player, a conflict or a failure
+        EXPIRED;        // Closed by the shop before it was checked out
+
+        public boolean isFinal() {
+            return this == APPLIED || this == CANCELLED || this == EXPIRED;
+        }
+    }
+
+    /**
+     * Represents a shop process.
+     * Everything that changes during the lifecycle is kept in an immutable {@link State} that is replaced by
+     * compare-and-set, so each transition happens exactly once and readers on any thread see a consistent state.
      */
     public static class ShopProcess {
+        /**
+         * A snapshot of the changing data of a shop process
+         * @param newInventory The purchased inventory, set from {@link ShopState#CHECKED_OUT} on
+         * @param newEchest The purchased ender chest, set from {@link ShopState#CHECKED_OUT} on
+         */
+        public record State(ShopState phase, String webLink, String twoFactorCode,
+                            InventoryData newInventory, ContainerData newEchest) {
+            State withPhase(ShopState phase) {
+                return new State(phase, webLink, twoFactorCode, newInventory, newEchest);
+            }
+        }
+
         private final UUID playerId;
         private final UUID processId;
         private final InventorySnapshot originalInventory;
+        private final String shopSlug;
         private final String shopLabel;
-        private String webLink;
-        private String twoFactorCode;
-        private InventoryData newInventory;
-        private ContainerData newEchest;
+        private final InventoryFilter inventoryFilter;
+        private final AtomicReference<State> state = new AtomicReference<>(new State(ShopState.INITIATING, null, null, null, null));
+        private volatile CompletableFuture<Boolean> inventoryUpload = CompletableFuture.completedFuture(true);
+        private volatile CompletableFuture<InventoryList> checkout;
+        private volatile int checkoutRound;
 
         public ShopProcess(UUID playerId, UUID processId, InventorySnapshot originalInventory, String shopLabel) {
+            this(playerId, processId, originalInventory, null, shopLabel, InventoryFilter.ALL);
+        }
+
+        public ShopProcess(UUID playerId, UUID processId, InventorySnapshot originalInventory, String shopSlug, String shopLabel, InventoryFilter inventoryFilter) {
             this.playerId = playerId;
             this.processId = processId;
             this.originalInventory = originalInventory;
+            this.shopSlug = shopSlug;
             this.shopLabel = shopLabel;
+            this.inventoryFilter = inventoryFilter;
         }
 
         public UUID getPlayerId() {
@@ -82,40 +124,136 @@ public class DataTypes {
             return originalInventory;
         }
 
+        public String getShopSlug() {
+            return shopSlug;
+        }
+
         public String getShopLabel() {
             return shopLabel;
         }
 
-        public String getWebLink() {
-            return webLink;
+        /**
+         * @return The filter that selected which slots were sent to the shop
+         */
+        public InventoryFilter getInventoryFilter() {
+            return inventoryFilter;
         }
 
-        public void setWebLink(String webLink) {
-            this.webLink = webLink;
+        /**
+         * @return The current state, read all fields of one transition from the same snapshot
+         */
+        public State getState() {
+            return state.get();
         }
 
-        public String getTwoFactorCode() {
-            return twoFactorCode;
+        public String getWebLink() {
+            return state.get().webLink();
         }
 
-        public void setTwoFactorCode(String twoFactorCode) {
-            this.twoFactorCode = twoFactorCode;
+        public String getTwoFactorCode() {
+            return state.get().twoFactorCode();
         }
 
         public InventoryData getNewInventory() {
-            return newInventory;
+            return state.get().newInventory();
         }
 
-        public void setNewInventory(InventoryData newInventory) {
-            this.newInventory = newInventory;
+        public ContainerData getNewEchest() {
+            return state.get().newEchest();
         }
 
-        public void setNewEchest(ContainerData newEchest) {
-            this.newEchest = newEchest;
+        /**
+         * INITIATING -> OPEN, once the API returned the link and verification code
+         * @return false if the process is no longer initiating
+         */
+        public boolean open(String webLink, String twoFactorCode) {
+            State current = state.get();
+            return current.phase() == ShopState.INITIATING
+                    && state.compareAndSet(current, new State(ShopState.OPEN, webLink, twoFactorCode, null, null));
         }
 
-        public ContainerData getNewEchest() {
-            return newEchest;
+        /**
+         * OPEN -> CHECKED_OUT, or a repeated checkout of an already checked out process
+         * @return false if the process is being applied or finished
+         */
+        public boolean checkedOut(InventoryData newInventory, ContainerData newEchest) {
+            while (true) {
+                State current = state.get();
+                if (current.phase() != ShopState.OPEN && current.phase() != ShopState.CHECKED_OUT) {
+                    return false;
+                }
+                State next = new State(ShopState.CHECKED_OUT, current.webLink(), current.twoFactorCode(), newInventory, newEchest);
+                if (state.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Moves the process from one phase to another, if it is still in the expected phase
+         * @return The new state, or null if the process was not in the expected phase
+         */
+        public State transition(ShopState from, ShopState to) {
+            State current = state.get();
+            if (current.phase() != from) {
+                return null;
+            }
+            State next = current.withPhase(to);
+            return state.compareAndSet(current, next) ? next : null;
+        }
+
+        /**
+         * Moves the process to a final phase, unless it already is in one
+         * @return false if the process was already finished
+         */
+        public boolean finish(ShopState to) {
+            while (true) {
+                State current = state.get();
+                if (current.phase().isFinal()) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current.withPhase(to))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return The background inventory upload of a reserved session, already completed for initiated sessions
+         */
+        public CompletableFuture<Boolean> getInventoryUpload() {
+            return inventoryUpload;
+        }
+
+        public void setInventoryUpload(CompletableFuture<Boolean> inventoryUpload) {
+            this.inventoryUpload = inventoryUpload;
+        }
+
+        /**
+         * @return The checkout request, or null if the process was not checked out yet
+         */
+        public CompletableFuture<InventoryList> getCheckout() {
+            return checkout;
+        }
+
+        public void setCheckout(CompletableFuture<InventoryList> checkout) {
+            this.checkout = checkout;
+        }
+
+        /**
+         * @return How often the checkout was fetched again after it completed, starting at 0
+         */
+        public int getCheckoutRound() {
+            return checkoutRound;
+        }
+
+        /**
+         * Drops the completed checkout, so the next checkout fetches the cart again with a new round.
+         * Callers synchronize on the process, like for {@link #setCheckout}.
+         */
+        public void refreshCheckout() {
+            checkout = null;
+            checkoutRound++;
         }
     }
 
@@ -127,6 +265,8 @@ public class DataTypes {
         private String link;
         private String twoFactorCode;
         private String errorMessage;
+        // Size of the initiate request in UTF-8 bytes
+        private transient long requestBytes;
         
         public String getUuid() {
             return uuid;
@@ -163,6 +303,70 @@ public class DataTypes {
         public boolean hasError() {
             return errorMessage != null && !errorMessage.isEmpty();
         }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public void setRequestBytes(long requestBytes) {
+            this.requestBytes = requestBytes;
+        }
+    }
+
+    /**
+     * Response from the shop API to a batch of initiate requests, with one session per request in the same order
+     */
+    public static class InitiateBatchResponse {
+        private List<ShopResponse> sessions;
+
+        public List<ShopResponse> getSessions() {
+            return sessions;
+        }
+
+        public void setSessions(List<ShopResponse> sessions) {
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * Result for one session of a batched cancel or setApplied request
+     */
+    public static class BatchResult {
+        private String uuid;
+        private int status;
+        private String message;
+        private String error;
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Response from the shop API to a batched cancel or setApplied request, with one result per session in the same order
+     */
+    public static class NotificationBatchResponse {
+        private List<BatchResult> sessions;
+
+        public List<BatchResult> getSessions() {
+            return sessions;
+        }
+
+        public void setSessions(List<BatchResult> sessions) {
+            this.sessions = sessions;
+        }
     }
 
     /**
@@ -171,6 +375,8 @@ public class DataTypes {
     public static class InventoryList {
         private InventoryData inventory;
         private ContainerData echest;
+        // Size of the checkout response in UTF-8 bytes, after decompression
+        private transient long responseBytes;
 
         public InventoryData getInventoryData()
         {
@@ -182,16 +388,39 @@ public class DataTypes {
             return echest;
         }
 
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        public void setResponseBytes(long responseBytes) {
+            this.responseBytes = responseBytes;
+        }
+
         public void setInventoryFromPlayer(Inventory playerInventory) {
+            setInventoryFromPlayer(playerInventory, InventoryFilter.ALL);
+        }
+
+        /**
+         * Serializes the slots of the player inventory accepted by a filter
+         * @param playerInventory The player inventory
+         * @param filter The shop filter, occupied slots it rejects are only listed as locked
+         */
+        public void setInventoryFromPlayer(Inventory playerInventory, InventoryFilter filter) {
             if (playerInventory == null) return;
+            long start = System.nanoTime();
             
             this.inventory = new InventoryData();
             Map<Integer, ItemData> itemMap = new java.util.HashMap<>();
+            java.util.List<Integer> lockedSlots = filter.acceptsAllItems() ? null : new java.util.ArrayList<>();
             
             // Process main inventory
             for (int i = 0; i < playerInventory.getContainerSize(); i++) {
                 ItemStack stack = playerInventory.getItem(i);
                 if (!stack.isEmpty()) {
+                    if (!filter.accepts(stack)) {
+                        lockedSlots.add(i);
+                        continue;
+                    }
                     ItemData itemData = createItemData(stack);
                     itemMap.put(i, itemData);
                 }
@@ -199,18 +428,35 @@ public class DataTypes {
             
             this.inventory.size = playerInventory.getContainerSize();
             this.inventory.items = itemMap;
+            this.inventory.lockedSlots = lockedSlots;
+            ShopMetrics.recordSince(ShopMetrics.Phase.SERIALIZE, start);
         }
 
         public void setEchestFromPlayer(Container playerEchest) {
+            setEchestFromPlayer(playerEchest, InventoryFilter.ALL);
+        }
+
+        /**
+         * Serializes the slots of the ender chest accepted by a filter
+         * @param playerEchest The player's ender chest
+         * @param filter The shop filter, occupied slots it rejects are only listed as locked
+         */
+        public void setEchestFromPlayer(Container playerEchest, InventoryFilter filter) {
             if (playerEchest == null) return;
+            long start = System.nanoTime();
             
             this.echest = new ContainerData();
             Map<Integer, ItemData> itemMap = new java.util.HashMap<>();
+            java.util.List<Integer> lockedSlots = filter.acceptsAllItems() ? null : new java.util.ArrayList<>();
             
             // Process ender chest inventory
             for (int i = 0; i < playerEchest.getContainerSize(); i++) {
                 ItemStack stack = playerEchest.getItem(i);
                 if (!stack.isEmpty()) {
+                    if (!filter.accepts(stack)) {
+                        lockedSlots.add(i);
+                        continue;
+                    }
                     ItemData itemData = createItemData(stack);
                     itemMap.put(i, itemData);
                 }
@@ -218,6 +464,8 @@ public class DataTypes {
             
             this.echest.size = playerEchest.getContainerSize();
             this.echest.items = itemMap;
+            this.echest.lockedSlots = lockedSlots;
+            ShopMetrics.recordSince(ShopMetrics.Phase.SERIALIZE, start);
         }
           // Helper method to create ItemData from ItemStack
         private ItemData createItemData(ItemStack stack) {
@@ -274,6 +522,8 @@ public class DataTypes {
     public static class InventoryData {
         private Integer size;
         private Map<Integer, ItemData> items;
+        // Occupied slots hidden by the shop filter, null if nothing was filtered
+        private java.util.List<Integer> lockedSlots;
 
         public Integer getSize() {
             return size;
@@ -286,11 +536,17 @@ public class DataTypes {
         public ItemData getItem(Integer index) {
             return items.get(index);
         }
+
+        public java.util.List<Integer> getLockedSlots() {
+            return lockedSlots;
+        }
     }
 
     public static class ContainerData {
         private Integer size;
         private Map<Integer, ItemData> items;
+        // Occupied slots hidden by the shop filter, null if nothing was filtered
+        private java.util.List<Integer> lockedSlots;
 
         public Integer getSize() {
             return size;
@@ -303,6 +559,10 @@ public class DataTypes {
         public ItemData getItem(Integer index) {
             return items.get(index);
         }
+
+        public java.util.List<Integer> getLockedSlots() {
+            return lockedSlots;
+        }
     }
     
     public static class ItemData {
@@ -370,6 +630,43 @@ public class DataTypes {
         }
     }
     
+    /**
+     * Result of a three-way merge between the original snapshot, the current inventory and the shop result
+     */
+    public static class InventoryMerge {
+        private final boolean[] touchedInventorySlots;
+        private final boolean[] touchedEchestSlots;
+        private final java.util.List<String> conflicts;
+        
+        public InventoryMerge(boolean[] touchedInventorySlots, boolean[] touchedEchestSlots, java.util.List<String> conflicts) {
+            this.touchedInventorySlots = touchedInventorySlots;
+            this.touchedEchestSlots = touchedEchestSlots;
+            this.conflicts = conflicts;
+        }
+        
+        /**
+         * @return true if the shop changed the given inventory slot
+         */
+        public boolean isInventorySlotTouched(int slot) {
+            return slot < touchedInventorySlots.length && touchedInventorySlots[slot];
+        }
+        
+        /**
+         * @return true if the shop changed the given ender chest slot
+         */
+        public boolean isEchestSlotTouched(int slot) {
+            return slot < touchedEchestSlots.length && touchedEchestSlots[slot];
+        }
+        
+        public java.util.List<String> getConflicts() {
+            return conflicts;
+        }
+        
+        public boolean hasConflicts() {
+            return !conflicts.isEmpty();
+        }
+    }
+    
     /**
      * Represents an inventory diff between two snapshots
      */
@@ -0,0 +1,119 @@
+package info.rusty.webshoplink;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An endpoint setting like {@code "/{uuid}/checkout"}, split at its placeholders once when the config is loaded.
+ *
+ * Resolving writes the base URL, the literal segments and the process id into one exactly sized buffer,
+ * so no intermediate strings are created. Endpoints without a placeholder resolve to the same URI every time,
+ * which is cached per base URL.
+ */
+public final class EndpointTemplate {
+    private static final String PROCESS_PLACEHOLDER = "{uuid}";
+    private static final int UUID_LENGTH = 36;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String template;
+    // Literal text around the placeholders, one more segment than there are placeholders
+    private final String[] segments;
+    private final int literalLength;
+    private final Map<String, URI> fixedUris = new ConcurrentHashMap<>();
+
+    private EndpointTemplate(String template, String[] segments) {
+        this.template = template;
+        this.segments = segments;
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Splits an endpoint setting at its {@code {uuid}} placeholders
+     * @param template The endpoint setting, null is treated as empty
+     */
+    public static EndpointTemplate compile(String template) {
+        String text = template != null ? template : "";
+        List<String> segments = new ArrayList<>();
+        int from = 0;
+        int placeholder;
+        while ((placeholder = text.indexOf(PROCESS_PLACEHOLDER, from)) >= 0) {
+            segments.add(text.substring(from, placeholder));
+            from = placeholder + PROCESS_PLACEHOLDER.length();
+        }
+        segments.add(text.substring(from));
+        return new EndpointTemplate(text, segments.toArray(new String[0]));
+    }
+
+    /**
+     * @return Whether the setting is empty, which disables optional endpoints
+     */
+    public boolean isEmpty() {
+        return template.isEmpty();
+    }
+
+    /**
+     * Resolves an endpoint that doesn't belong to a process
+     * @param baseUrl The base URL of the backend
+     */
+    public URI resolve(String baseUrl) {
+        if (segments.length == 1) {
+            return fixedUris.computeIfAbsent(baseUrl, url -> URI.create(url + template));
+        }
+        return resolve(baseUrl, null);
+    }
+
+    /**
+     * Resolves the endpoint of a process
+     * @param baseUrl The base URL of the backend
+     * @param processId The process id filled in for the placeholders, null leaves them empty
+     */
+    public URI resolve(String baseUrl, UUID processId) {
+        if (segments.length == 1) {
+            return resolve(baseUrl);
+        }
+        int placeholders = segments.length - 1;
+        StringBuilder uri = new StringBuilder(baseUrl.length() + literalLength + (processId != null ? placeholders * UUID_LENGTH : 0));
+        uri.append(baseUrl).append(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            if (processId != null) {
+                appendUuid(uri, processId);
+            }
+            uri.append(segments[i]);
+        }
+        return URI.create(uri.toString());
+    }
+
+    // Same format as UUID.toString()
+    private static void appendUuid(StringBuilder builder, UUID uuid) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        appendHex(builder, most >>> 32, 8);
+        builder.append('-');
+        appendHex(builder, most >>> 16, 4);
+        builder.append('-');
+        appendHex(builder, most, 4);
+        builder.append('-');
+        appendHex(builder, least >>> 48, 4);
+        builder.append('-');
+        appendHex(builder, least, 12);
+    }
+
+    private static void appendHex(StringBuilder builder, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            builder.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
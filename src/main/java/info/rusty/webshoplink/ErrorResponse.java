@@ -8,13 +8,28 @@ import net.minecraft.network.chat.Style;
  * Represents an error response from the API
  */
 public class ErrorResponse extends RuntimeException {
+    /**
+     * What went wrong. Errors reported by the API itself are {@link #API}, the others were detected by the mod.
+     */
+    public enum Type {
+        API,                    // The API answered with an error
+        RESPONSE_TOO_LARGE,     // The response body exceeded maxResponseBytes and was aborted
+        RESPONSE_TOO_COMPLEX    // The response JSON exceeded maxResponseDepth or maxResponseElements
+    }
+
     private final String errorMessage;
     private final int statusCode;
+    private final Type type;
 
     public ErrorResponse(String errorMessage, int statusCode) {
+        this(errorMessage, statusCode, Type.API);
+    }
+
+    public ErrorResponse(String errorMessage, int statusCode, Type type) {
         super(errorMessage);
         this.errorMessage = errorMessage;
         this.statusCode = statusCode;
+        this.type = type;
     }
 
     public String getErrorMessage() {
@@ -25,6 +40,17 @@ public class ErrorResponse extends RuntimeException {
         return statusCode;
     }
 
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Checks if the response was rejected for its size or nesting
+     */
+    public boolean isResponseLimitError() {
+        return type == Type.RESPONSE_TOO_LARGE || type == Type.RESPONSE_TOO_COMPLEX;
+    }
+
     public boolean isAlreadyOpenInstance() {
         return errorMessage != null && (
             errorMessage.toLowerCase().contains("already has an open shop instance")
@@ -160,7 +186,9 @@ public class ErrorResponse extends RuntimeException {
      * @return A title for the error message
      */
     public String getUserFriendlyTitle() {
-        if (isAlreadyOpenInstance()) {
+        if (isResponseLimitError()) {
+            return "Invalid Shop Response";
+        } else if (isAlreadyOpenInstance()) {
             return "Active Session Exists";
         } else if (shopNotFound()) {
             return "Shop Not Found";
@@ -196,7 +224,10 @@ public class ErrorResponse extends RuntimeException {
      * @return A friendly error message for the user
      */
     public Component getUserFriendlyMessage() {
-        if (isAlreadyOpenInstance()) {
+        if (isResponseLimitError()) {
+            return Component.literal("The shop server sent a response that is too large to process.")
+                   .withStyle(Style.EMPTY.withColor(ChatFormatting.RED));
+        } else if (isAlreadyOpenInstance()) {
             return Component.literal("You already have an active shop session. Please finish or cancel your current session before starting a new one.")
                    .withStyle(Style.EMPTY.withColor(ChatFormatting.RED));
         } else if (shopNotFound()) {
@@ -245,7 +276,10 @@ public class ErrorResponse extends RuntimeException {
      * Gets help text to accompany the error message
      * @return Help text component
      */    public Component getHelpText() {
-        if (isAlreadyOpenInstance()) {
+        if (isResponseLimitError()) {
+            return Component.literal("No items were changed. Please contact an administrator.")
+                   .withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW));
+        } else if (isAlreadyOpenInstance()) {
             return Component.literal("If you can't find your active session, for it to expire automatically, which takes at most 15 minutes.")
                    .withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW));
         } else if (shopNotFound()) {
@@ -0,0 +1,102 @@
+package info.rusty.webshoplink;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Probes the shop API's health endpoint on server start and then periodically.
+ *
+ * Every backend is probed. The first probe opens the HTTP/2 connection before any player runs /shop, and the periodic
+ * ones keep it from idling out. A backend that stops answering is logged as soon as a probe fails, not when the next
+ * player hits it, and failed probes count towards ejecting it.
+ */
+public class HealthMonitor {
+    private static final AtomicBoolean PROBING = new AtomicBoolean();
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile boolean healthy = true;
+    private static volatile long lastProbeMillis = -1;
+
+    /**
+     * Sends the first probe right away and schedules the periodic ones, if a health endpoint is configured
+     */
+    public static synchronized void start() {
+        stop();
+        healthy = true;
+        lastProbeMillis = -1;
+        if (Config.shopHealthEndpoint == null || Config.shopHealthEndpoint.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (Config.healthCheckInterval > 0) {
+            scheduler.scheduleWithFixedDelay(HealthMonitor::probe, 0, Config.healthCheckInterval, TimeUnit.SECONDS);
+        } else {
+            scheduler.execute(HealthMonitor::probe);
+        }
+    }
+
+    /**
+     * Stops probing
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * @return false if the last probe of any backend failed
+     */
+    public static boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return The duration of the last probe in milliseconds, or -1 if there was none
+     */
+    public static long getLastProbeMillis() {
+        return lastProbeMillis;
+    }
+
+    // Probes every backend, the API counts as healthy if all of them answered
+    private static void probe() {
+        // A probe slower than the interval is not stacked up
+        if (!PROBING.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        Collection<BackendRouter.Backend> backends = BackendRouter.getBackends();
+        AtomicInteger remaining = new AtomicInteger(backends.size());
+        AtomicBoolean allOk = new AtomicBoolean(true);
+        for (BackendRouter.Backend backend : backends) {
+            ApiService.probeHealth(backend).whenComplete((status, error) -> {
+                boolean ok = error == null && status < 500;
+                ShopMetrics.increment("webshoplink_health_checks_total{result=\"" + (ok ? "ok" : "failed") + "\"}");
+                if (!ok) {
+                    allOk.set(false);
+                    if (healthy) {
+                        DebugLogger.logError("Shop API health check of " + backend.getBaseUrl() + " failed: "
+                                + (error != null ? error.getMessage() : "status " + status), null);
+                    }
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    lastProbeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (allOk.get() && !healthy) {
+                        DebugLogger.log("Shop API is reachable again", Config.DebugVerbosity.MINIMAL);
+                    }
+                    healthy = allOk.get();
+                    PROBING.set(false);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package info.rusty.webshoplink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Collapses repeated mutating API calls for the same shop process into one exchange.
+ *
+ * Every operation on a process has a fixed idempotency key, sent as the {@code Idempotency-Key} header, so the
+ * backend can recognize retries. Locally, the response of a key is shared while in flight and cached for a while
+ * after it succeeded, so double-clicked chat links don't even reach the network. Failed responses are dropped
+ * right away, so a retry sends a new request with the same key.
+ */
+public class IdempotencyCache {
+    public static final String HEADER = "Idempotency-Key";
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final int MAX_ENTRIES = 10_000;
+
+    private record Entry(CompletableFuture<?> response, long createdNanos) {
+        boolean isUsable(long now) {
+            return now - createdNanos < TTL_NANOS && !response.isCompletedExceptionally();
+        }
+    }
+
+    private static final Map<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * @param processId The shop process
+     * @param operation The operation, e.g. "cancel"
+     * @return The idempotency key, the same for every attempt of the operation on the process
+     */
+    public static String key(UUID processId, String operation) {
+        return UUID.nameUUIDFromBytes((processId + "/" + operation).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Returns the in-flight or cached response of a key, or sends the request if there is none
+     * @param key The idempotency key
+     * @param request Sends the request, called at most once per key while its response is usable
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<T> getOrSend(String key, Supplier<CompletableFuture<T>> request) {
+        long now = System.nanoTime();
+        if (CACHE.size() >= MAX_ENTRIES) {
+            CACHE.values().removeIf(entry -> !entry.isUsable(now));
+        }
+        Entry existing = CACHE.get(key);
+        if (existing != null && existing.isUsable(now)) {
+            ShopMetrics.increment("webshoplink_idempotent_hits_total");
+            DebugLogger.log("Reusing response for idempotency key " + key, Config.DebugVerbosity.DEFAULT);
+            return (CompletableFuture<T>) existing.response();
+        }
+
+        CompletableFuture<T> response = new CompletableFuture<>();
+        Entry entry = new Entry(response, now);
+        Entry winner = CACHE.compute(key, (k, current) -> current != null && current.isUsable(now) ? current : entry);
+        if (winner != entry) {
+            // Another thread started the request in the meantime
+            ShopMetrics.increment("webshoplink_idempotent_hits_total");
+            return (CompletableFuture<T>) winner.response();
+        }
+        try {
+            request.get().whenComplete((value, error) -> {
+                if (error != null) {
+                    CACHE.remove(key, entry);
+                    response.completeExceptionally(error);
+                } else {
+                    response.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            CACHE.remove(key, entry);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Drops the cached response of a key, so the next call sends a new request
+     */
+    public static void invalidate(String key) {
+        CACHE.remove(key);
+    }
+
+    /**
+     * Drops all cached responses
+     */
+    public static void clear() {
+        CACHE.clear();
+    }
+}
@@ -0,0 +1,176 @@
+package info.rusty.webshoplink;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Combines initiate requests of players opening a shop at about the same time into one request to the batch endpoint.
+ *
+ * The first request of a batch starts a window of {@code initiateBatchWindow} milliseconds, all requests arriving in
+ * that window are sent together. A batch that reaches {@code initiateBatchMaxSize} is sent right away, and a batch
+ * with a single request goes to the normal initiate endpoint. If the API has no batch endpoint, batching is turned off
+ * until the next server start and the requests are sent one by one.
+ */
+public class InitiateBatcher {
+    /**
+     * An initiate request waiting for its batch
+     */
+    private record Pending(String shopSlug, String jsonPayload, CompletableFuture<ShopResponse> response) {
+    }
+
+    private static final Object LOCK = new Object();
+    private static List<Pending> pending = new ArrayList<>();
+    private static ScheduledFuture<?> scheduledFlush;
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile boolean unsupported;
+
+    /**
+     * Starts the flush scheduler if a batch endpoint is configured
+     */
+    public static synchronized void start() {
+        stop();
+        unsupported = false;
+        if (Config.shopBatchInitiateEndpoint == null || Config.shopBatchInitiateEndpoint.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the scheduler and sends the requests that are still waiting
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        flush();
+    }
+
+    /**
+     * @return Whether initiate requests should be submitted to the batcher
+     */
+    public static boolean isEnabled() {
+        return scheduler != null && !unsupported;
+    }
+
+    /**
+     * Adds an initiate request to the current batch
+     * @param jsonPayload The serialized request payload of {@link ApiService#initiateShop}
+     * @return A CompletableFuture with the response for this request
+     */
+    public static CompletableFuture<ShopResponse> submit(String shopSlug, String jsonPayload) {
+        Pending request = new Pending(shopSlug, jsonPayload, new CompletableFuture<>());
+        List<Pending> batch = null;
+        synchronized (LOCK) {
+            pending.add(request);
+            if (pending.size() >= Config.initiateBatchMaxSize) {
+                batch = take();
+            } else if (pending.size() == 1 && !scheduleFlush()) {
+                // Stopped in the meantime
+                batch = take();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        return request.response();
+    }
+
+    // Must hold LOCK
+    private static boolean scheduleFlush() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return false;
+        }
+        try {
+            scheduledFlush = executor.schedule(InitiateBatcher::flush, Config.initiateBatchWindow, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Must hold LOCK
+    private static List<Pending> take() {
+        List<Pending> batch = pending;
+        pending = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private static void flush() {
+        List<Pending> batch;
+        synchronized (LOCK) {
+            batch = take();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private static void send(List<Pending> batch) {
+        if (batch.size() == 1 || unsupported) {
+            sendEach(batch);
+            return;
+        }
+        // Shops routed to different backends can't share a batch
+        Map<BackendRouter.Pool, List<Pending>> byPool = new LinkedHashMap<>();
+        for (Pending request : batch) {
+            byPool.computeIfAbsent(BackendRouter.poolFor(request.shopSlug()), pool -> new ArrayList<>()).add(request);
+        }
+        byPool.forEach((pool, requests) -> {
+            if (requests.size() == 1) {
+                sendEach(requests);
+            } else {
+                send(pool.pick(), requests);
+            }
+        });
+    }
+
+    private static void send(BackendRouter.Backend backend, List<Pending> batch) {
+        ShopMetrics.increment("webshoplink_initiate_batches_total");
+        ShopMetrics.add("webshoplink_initiate_batched_total", batch.size());
+        List<String> jsonPayloads = new ArrayList<>(batch.size());
+        for (Pending request : batch) {
+            jsonPayloads.add(request.jsonPayload());
+        }
+        ApiService.initiateBatch(backend, jsonPayloads).thenAccept(responses -> {
+            if (responses == null) {
+                if (!unsupported) {
+                    unsupported = true;
+                    DebugLogger.log("Shop API does not support batched initiate requests, sending them one by one", Config.DebugVerbosity.MINIMAL);
+                }
+                sendEach(batch);
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).response().complete(responses.get(i));
+            }
+        });
+    }
+
+    private static void sendEach(List<Pending> batch) {
+        for (Pending request : batch) {
+            ApiService.sendInitiate(request.shopSlug(), request.jsonPayload()).thenAccept(request.response()::complete);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package info.rusty.webshoplink;
+
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.Container;
+import net.minecraft.world.item.ItemStack;
+import info.rusty.webshoplink.DataTypes.*;
+
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * A set of staged slot changes for a player's inventory and ender chest.
+ * All item stacks are created while staging, so a batch that was staged successfully
+ * can be committed in one go and synced to the client with one packet per container.
+ */
+public class InventoryBatch {
+    private final int[] inventorySlots;
+    private final ItemStack[] inventoryStacks;
+    private final int inventoryChanges;
+    private final int[] echestSlots;
+    private final ItemStack[] echestStacks;
+    private final int echestChanges;
+
+    private InventoryBatch(int[] inventorySlots, ItemStack[] inventoryStacks, int inventoryChanges,
+                           int[] echestSlots, ItemStack[] echestStacks, int echestChanges) {
+        this.inventorySlots = inventorySlots;
+        this.inventoryStacks = inventoryStacks;
+        this.inventoryChanges = inventoryChanges;
+        this.echestSlots = echestSlots;
+        this.echestStacks = echestStacks;
+        this.echestChanges = echestChanges;
+    }
+
+    /**
+     * Stages the changes needed to turn the player's current inventory and ender chest into the given ones
+     * @param player The player whose containers are compared
+     * @param newInventory The new inventory, or null to leave the inventory untouched
+     * @param newEchest The new ender chest, or null to leave the ender chest untouched
+     * @return The staged batch
+     * @throws ErrorResponse If an item from the shop could not be created
+     */
+    public static InventoryBatch stage(ServerPlayer player, InventoryData newInventory, ContainerData newEchest) {
+        return stage(player, newInventory, newEchest, null);
+    }
+
+    /**
+     * Stages the changes from a shop result, limited to the slots the shop changed according to a merge
+     * @param player The player whose containers are compared
+     * @param newInventory The new inventory, or null to leave the inventory untouched
+     * @param newEchest The new ender chest, or null to leave the ender chest untouched
+     * @param merge The merge result selecting the slots to apply, or null to apply every slot
+     * @return The staged batch
+     * @throws ErrorResponse If an item from the shop could not be created
+     */
+    public static InventoryBatch stage(ServerPlayer player, InventoryData newInventory, ContainerData newEchest, InventoryMerge merge) {
+        long start = System.nanoTime();
+        Container inventory = player.getInventory();
+        Container echest = player.getEnderChestInventory();
+
+        int inventorySize = newInventory != null ? Math.min(newInventory.getSize(), inventory.getContainerSize()) : 0;
+        int[] inventorySlots = new int[inventorySize];
+        ItemStack[] inventoryStacks = new ItemStack[inventorySize];
+        int inventoryChanges = newInventory != null
+                ? stageContainer(inventory, newInventory.getItems(), inventorySize, inventorySlots, inventoryStacks, "Inventory",
+                        merge != null ? merge::isInventorySlotTouched : null)
+                : 0;
+
+        int echestSize = newEchest != null ? Math.min(newEchest.getSize(), echest.getContainerSize()) : 0;
+        int[] echestSlots = new int[echestSize];
+        ItemStack[] echestStacks = new ItemStack[echestSize];
+        int echestChanges = newEchest != null
+                ? stageContainer(echest, newEchest.getItems(), echestSize, echestSlots, echestStacks, "E-Chest",
+                        merge != null ? merge::isEchestSlotTouched : null)
+                : 0;
+
+        DebugLogger.log("Staged " + inventoryChanges + " inventory and " + echestChanges + " E-Chest slot changes for player " + player.getName().getString(), Config.DebugVerbosity.DEFAULT);
+        ShopMetrics.recordSince(ShopMetrics.Phase.STAGE, start);
+        return new InventoryBatch(inventorySlots, inventoryStacks, inventoryChanges, echestSlots, echestStacks, echestChanges);
+    }
+
+    private static int stageContainer(Container container, Map<Integer, ItemData> items, int size, int[] slots, ItemStack[] stacks, String slotType, IntPredicate slotFilter) {
+        int changes = 0;
+        for (int i = 0; i < size; i++) {
+            if (slotFilter != null && !slotFilter.test(i)) {
+                // The shop didn't change this slot, keep whatever the player has there now
+                continue;
+            }
+            ItemData item = items.get(i);
+            ItemStack currentStack = container.getItem(i);
+
+            // Log detailed comparison for debugging
+            InventoryManager.logItemComparison(currentStack, item, slotType, i);
+
+            if (InventoryManager.stackMatchesItemData(currentStack, item)) {
+                continue;
+            }
+
+            ItemStack newStack = item != null ? item.getItemStackData() : ItemStack.EMPTY;
+            if (item != null && newStack.isEmpty()) {
+                // Nothing has been changed yet, so failing here leaves the player untouched
+                throw new ErrorResponse("Invalid item in shop result: " + item.getItemId(), 0);
+            }
+
+            slots[changes] = i;
+            stacks[changes] = newStack;
+            changes++;
+        }
+        return changes;
+    }
+
+    /**
+     * @return The number of slots this batch changes across both containers
+     */
+    public int getChangedSlots() {
+        return inventoryChanges + echestChanges;
+    }
+
+    /**
+     * @return true if committing this batch would not change anything
+     */
+    public boolean isEmpty() {
+        return inventoryChanges == 0 && echestChanges == 0;
+    }
+
+    /**
+     * Writes all staged slots and sends one content sync per affected container.
+     * If writing any slot fails, every slot written so far is restored.
+     * Must be called on the server thread.
+     * @param player The player to apply the batch to
+     * @return true if the batch was committed, false if it was rolled back
+     */
+    public boolean commit(ServerPlayer player) {
+        long start = System.nanoTime();
+        Container inventory = player.getInventory();
+        Container echest = player.getEnderChestInventory();
+        ItemStack[] previousInventory = new ItemStack[inventoryChanges];
+        ItemStack[] previousEchest = new ItemStack[echestChanges];
+        int writtenInventory = 0;
+        int writtenEchest = 0;
+
+        try {
+            for (; writtenInventory < inventoryChanges; writtenInventory++) {
+                int slot = inventorySlots[writtenInventory];
+                previousInventory[writtenInventory] = inventory.getItem(slot);
+                inventory.setItem(slot, inventoryStacks[writtenInventory]);
+                DebugLogger.log("Updated slot " + slot + " to " + describe(inventoryStacks[writtenInventory]), Config.DebugVerbosity.DEFAULT);
+            }
+            for (; writtenEchest < echestChanges; writtenEchest++) {
+                int slot = echestSlots[writtenEchest];
+                previousEchest[writtenEchest] = echest.getItem(slot);
+                echest.setItem(slot, echestStacks[writtenEchest]);
+                DebugLogger.log("Updated ender chest slot " + slot + " to " + describe(echestStacks[writtenEchest]), Config.DebugVerbosity.DEFAULT);
+            }
+        } catch (RuntimeException e) {
+            DebugLogger.logError("Failed to apply inventory changes, rolling back", e);
+            for (int i = writtenEchest - 1; i >= 0; i--) {
+                echest.setItem(echestSlots[i], previousEchest[i]);
+            }
+            for (int i = writtenInventory - 1; i >= 0; i--) {
+                inventory.setItem(inventorySlots[i], previousInventory[i]);
+            }
+            syncContainers(player);
+            ShopMetrics.increment("webshoplink_apply_rollbacks_total");
+            ShopMetrics.recordSince(ShopMetrics.Phase.APPLY, start);
+            return false;
+        }
+
+        if (inventoryChanges > 0) {
+            inventory.setChanged();
+        }
+        if (echestChanges > 0) {
+            echest.setChanged();
+        }
+        if (!isEmpty()) {
+            syncContainers(player);
+        }
+        ShopMetrics.recordSince(ShopMetrics.Phase.APPLY, start);
+        return true;
+    }
+
+    /**
+     * Sends the full contents of the player's inventory menu, and of the open container if there is one,
+     * so the client receives one packet per container instead of one per changed slot.
+     */
+    private static void syncContainers(ServerPlayer player) {
+        player.inventoryMenu.sendAllDataToRemote();
+        if (player.containerMenu != player.inventoryMenu) {
+            // Covers an open ender chest as well as the player inventory shown inside other menus
+            player.containerMenu.sendAllDataToRemote();
+        }
+    }
+
+    private static String describe(ItemStack stack) {
+        if (stack.isEmpty()) {
+            return "empty";
+        }
+        return net.minecraft.core.registries.BuiltInRegistries.ITEM.getKey(stack.getItem()) + " x" + stack.getCount();
+    }
+}
@@ -0,0 +1,147 @@
+package info.rusty.webshoplink;
+
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.tags.ItemTags;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.registries.ForgeRegistries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects which containers and items are sent to a shop.
+ *
+ * Filters are configured per shop slug in the {@code shopFilters} config option, using entries like
+ * {@code currency=inventory,money,#forge:gems}. Supported rules:
+ * <ul>
+ *   <li>{@code inventory} / {@code echest} - containers to send, both are sent if neither is listed</li>
+ *   <li>{@code money} - items listed in the {@code moneyItems} config option</li>
+ *   <li>{@code <namespace:item>} - a single item</li>
+ *   <li>{@code #<namespace:tag>} - all items in an item tag</li>
+ * </ul>
+ * If no item rules are given, every item in the selected containers is sent.
+ * Slots holding items the filter rejects are sent as locked slots, so the shop knows they are occupied.
+ */
+public class InventoryFilter {
+    /**
+     * Filter that sends every slot of both containers
+     */
+    public static final InventoryFilter ALL = new InventoryFilter(true, true, false, Collections.emptySet(), Collections.emptyList());
+
+    private final boolean includeInventory;
+    private final boolean includeEchest;
+    private final boolean includeMoney;
+    private final Set<Item> items;
+    private final List<TagKey<Item>> tags;
+
+    private InventoryFilter(boolean includeInventory, boolean includeEchest, boolean includeMoney, Set<Item> items, List<TagKey<Item>> tags) {
+        this.includeInventory = includeInventory;
+        this.includeEchest = includeEchest;
+        this.includeMoney = includeMoney;
+        this.items = items;
+        this.tags = tags;
+    }
+
+    /**
+     * Gets the filter configured for a shop
+     * @param shopSlug The shop slug
+     * @return The configured filter, or {@link #ALL} if the shop has none
+     */
+    public static InventoryFilter forShop(String shopSlug) {
+        if (Config.shopFilters == null) {
+            return ALL;
+        }
+        return Config.shopFilters.getOrDefault(shopSlug, ALL);
+    }
+
+    /**
+     * Parses the rule list of a filter entry
+     * @param rules Comma separated rules, see the class description
+     * @return The parsed filter
+     */
+    public static InventoryFilter parse(String rules) {
+        boolean includeInventory = false;
+        boolean includeEchest = false;
+        boolean includeMoney = false;
+        Set<Item> items = new HashSet<>();
+        List<TagKey<Item>> tags = new ArrayList<>();
+
+        for (String rawRule : rules.split(",")) {
+            String rule = rawRule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+
+            if (rule.equals("inventory")) {
+                includeInventory = true;
+            } else if (rule.equals("echest")) {
+                includeEchest = true;
+            } else if (rule.equals("money")) {
+                includeMoney = true;
+            } else if (rule.startsWith("#")) {
+                ResourceLocation tagId = ResourceLocation.tryParse(rule.substring(1));
+                if (tagId == null) {
+                    DebugLogger.logError("Invalid item tag in shop filter: " + rule, null);
+                    continue;
+                }
+                tags.add(ItemTags.create(tagId));
+            } else {
+                ResourceLocation itemId = ResourceLocation.tryParse(rule);
+                if (itemId == null || !ForgeRegistries.ITEMS.containsKey(itemId)) {
+                    DebugLogger.logError("Unknown item in shop filter: " + rule, null);
+                    continue;
+                }
+                items.add(ForgeRegistries.ITEMS.getValue(itemId));
+            }
+        }
+
+        if (!includeInventory && !includeEchest) {
+            includeInventory = true;
+            includeEchest = true;
+        }
+        return new InventoryFilter(includeInventory, includeEchest, includeMoney, items, tags);
+    }
+
+    public boolean includesInventory() {
+        return includeInventory;
+    }
+
+    public boolean includesEchest() {
+        return includeEchest;
+    }
+
+    /**
+     * @return true if every item is sent, so no slots are locked
+     */
+    public boolean acceptsAllItems() {
+        return !includeMoney && items.isEmpty() && tags.isEmpty();
+    }
+
+    /**
+     * Checks if an item stack should be sent to the shop
+     * @param stack The stack to check
+     * @return true if the stack is sent, empty stacks are always accepted
+     */
+    public boolean accepts(ItemStack stack) {
+        if (stack.isEmpty() || acceptsAllItems()) {
+            return true;
+        }
+        if (items.contains(stack.getItem())) {
+            return true;
+        }
+        if (includeMoney && Config.moneyItems != null && Config.moneyItems.contains(stack.getItem())) {
+            return true;
+        }
+        for (TagKey<Item> tag : tags) {
+            if (stack.is(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
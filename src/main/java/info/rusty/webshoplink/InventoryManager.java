@@ -7,9 +7,6 @@ import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.server.level.ServerPlayer;
 import info.rusty.webshoplink.DataTypes.*;
-import com.google.gson.JsonObject;
-
-import java.util.Map;
 
 /**
  * Handles all inventory operations for the Webshoplink mod.
@@ -19,6 +16,7 @@ public class InventoryManager {
      * Captures a snapshot of a player's inventory
      */
     public static InventorySnapshot captureInventory(Player player) {
+        long start = System.nanoTime();
         Inventory inventory = player.getInventory();
         int mainSize = inventory.getContainerSize() - inventory.armor.size() - inventory.offhand.size();
         ItemStack[] mainInventory = new ItemStack[mainSize];
@@ -58,6 +56,7 @@ public class InventoryManager {
             }
         }
         
+        ShopMetrics.recordSince(ShopMetrics.Phase.CAPTURE, start);
         return new InventorySnapshot(mainInventory, armorInventory, offhandInventory, enderChest);
     }
 
@@ -65,6 +64,13 @@ public class InventoryManager {
      * Checks if two inventory snapshots match
      */
     public static boolean inventoriesMatch(InventorySnapshot snapshot, InventorySnapshot current) {
+        long start = System.nanoTime();
+        boolean match = snapshotsMatch(snapshot, current);
+        ShopMetrics.recordSince(ShopMetrics.Phase.MATCH, start);
+        return match;
+    }
+
+    private static boolean snapshotsMatch(InventorySnapshot snapshot, InventorySnapshot current) {
         // Check main inventory
         if (snapshot.getMainInventory().length != current.getMainInventory().length) {
             return false;
@@ -115,122 +121,66 @@ public class InventoryManager {
     /**
      * Applies a new inventory to a player
      */
-    public static void applyNewInventory(ServerPlayer player, InventoryData newInventory) {
+    public static boolean applyNewInventory(ServerPlayer player, InventoryData newInventory) {
         // Log the operation
         DebugLogger.log("Applying new inventory to player: " + player.getName().getString(), Config.DebugVerbosity.MINIMAL);
-
-        Map<Integer, ItemData> items = newInventory.getItems();        for (int i = 0; i < newInventory.getSize(); i++) {
-            // Get the new item for this slot
-            ItemData item = items.get(i);
-            ItemStack currentStack = player.getInventory().getItem(i);
-            
-            // Log detailed comparison for debugging
-            logItemComparison(currentStack, item, "Inventory", i);
-            
-            if (item != null) {
-                // We have a new item to set - compare with current item
-                boolean shouldUpdate = false;
-                ItemStack newItemStack = item.getItemStackData();
-                
-                // Check if current item is empty or different from the new item
-                if (currentStack.isEmpty()) {
-                    shouldUpdate = !newItemStack.isEmpty();
-                } else {
-                    // Compare item type
-                    String currentItemId = net.minecraft.core.registries.BuiltInRegistries.ITEM.getKey(currentStack.getItem()).toString();
-                    if (!currentItemId.equals(item.getItemId())) {
-                        shouldUpdate = true;
-                    } 
-                    // Compare count
-                    else if (currentStack.getCount() != item.getCount()) {
-                        shouldUpdate = true;
-                    } 
-                    // Compare NBT data
-                    else if ((currentStack.hasTag() && item.getNbt() == null) || 
-                             (!currentStack.hasTag() && item.getNbt() != null)) {
-                        shouldUpdate = true;
-                        DebugLogger.log("NBT mismatch: one has NBT, other doesn't", Config.DebugVerbosity.DEFAULT);
-                    }
-                    else if (currentStack.hasTag() && item.getNbt() != null) {
-                        // Convert current NBT to JSON for comparison
-                        JsonObject currentNbtJson = (JsonObject) NbtSerializer.serializeNbt(currentStack.getTag());
-                        shouldUpdate = !currentNbtJson.equals(item.getNbt());
-                        
-                        if (shouldUpdate) {
-                            DebugLogger.log("NBT mismatch detected between current and new item", Config.DebugVerbosity.DEFAULT);
-                        }
-                    }
-                }
-                
-                if (shouldUpdate) {
-                    player.getInventory().setItem(i, newItemStack);
-                    DebugLogger.log("Updated slot " + i + " to " + item.getItemId() + " x" + item.getCount(), Config.DebugVerbosity.DEFAULT);
-                }
-            } else if (!currentStack.isEmpty()) {
-                // No item at this position in the new inventory, but slot is not empty - clear it
-                player.getInventory().setItem(i, ItemStack.EMPTY);
-                DebugLogger.log("Cleared slot " + i, Config.DebugVerbosity.DEFAULT);
-            }
-        }
+        return InventoryBatch.stage(player, newInventory, null).commit(player);
     }
 
-    public static void applyNewEchest(ServerPlayer player, ContainerData newEchest) {
+    public static boolean applyNewEchest(ServerPlayer player, ContainerData newEchest) {
         // Log the operation
         DebugLogger.log("Applying new E-Chest to player: " + player.getName().getString(), Config.DebugVerbosity.MINIMAL);
+        return InventoryBatch.stage(player, null, newEchest).commit(player);
+    }
 
-        Map<Integer, ItemData> items = newEchest.getItems();        for (int i = 0; i < newEchest.getSize(); i++) {
-            // Get the new item for this slot
-            ItemData item = items.get(i);
-            ItemStack currentStack = player.getEnderChestInventory().getItem(i);
-            
-            // Log detailed comparison for debugging
-            logItemComparison(currentStack, item, "E-Chest", i);
-            
-            if (item != null) {
-                // We have a new item to set - compare with current item
-                boolean shouldUpdate = false;
-                ItemStack newItemStack = item.getItemStackData();
-                
-                // Check if current item is empty or different from the new item
-                if (currentStack.isEmpty()) {
-                    shouldUpdate = !newItemStack.isEmpty();
-                } else {
-                    // Compare item type
-                    String currentItemId = net.minecraft.core.registries.BuiltInRegistries.ITEM.getKey(currentStack.getItem()).toString();
-                    if (!currentItemId.equals(item.getItemId())) {
-                        shouldUpdate = true;
-                    } 
-                    // Compare count
-                    else if (currentStack.getCount() != item.getCount()) {
-                        shouldUpdate = true;
-                    } 
-                    // Compare NBT data
-                    else if ((currentStack.hasTag() && item.getNbt() == null) || 
-                             (!currentStack.hasTag() && item.getNbt() != null)) {
-                        shouldUpdate = true;
-                        DebugLogger.log("E-Chest NBT mismatch: one has NBT, other doesn't", Config.DebugVerbosity.DEFAULT);
-                    }
-                    else if (currentStack.hasTag() && item.getNbt() != null) {
-                        // Convert current NBT to JSON for comparison
-                        JsonObject currentNbtJson = (JsonObject) NbtSerializer.serializeNbt(currentStack.getTag());
-                        shouldUpdate = !currentNbtJson.equals(item.getNbt());
-                        
-                        if (shouldUpdate) {
-                            DebugLogger.log("E-Chest NBT mismatch detected between current and new item", Config.DebugVerbosity.DEFAULT);
-                        }
-                    }
-                }
-                
-                if (shouldUpdate) {
-                    player.getEnderChestInventory().setItem(i, newItemStack);
-                    DebugLogger.log("Updated ender chest slot " + i + " to " + item.getItemId() + " x" + item.getCount(), Config.DebugVerbosity.DEFAULT);
-                }
-            } else if (!currentStack.isEmpty()) {
-                // No item at this position in the new inventory, but slot is not empty - clear it
-                player.getEnderChestInventory().setItem(i, ItemStack.EMPTY);
-                DebugLogger.log("Cleared ender chest slot " + i, Config.DebugVerbosity.DEFAULT);
+    /**
+     * Merges the shop result with changes the player made to their inventory after the shop was opened.
+     * Slots the shop did not change keep their current contents. Slots the shop changed are a conflict
+     * if the player changed them at all, even to the shop's result: a player who moved the payment out
+     * of its slot would otherwise keep it in an untouched slot and get the purchase too.
+     * 
+     * @param original The inventory snapshot sent to the shop
+     * @param current The current inventory snapshot
+     * @param newInventory The inventory returned by the shop
+     * @param newEchest The ender chest returned by the shop, may be null
+     * @param filter The filter used when sending the inventory, slots hidden by it are never touched
+     * @return The merge result, listing the slots to apply and any conflicts
+     */
+    public static InventoryMerge mergeInventories(InventorySnapshot original, InventorySnapshot current, InventoryData newInventory, ContainerData newEchest, InventoryFilter filter) {
+        java.util.List<String> conflicts = new java.util.ArrayList<>();
+        
+        boolean[] touchedInventory = new boolean[newInventory != null && filter.includesInventory() ? newInventory.getSize() : 0];
+        for (int i = 0; i < touchedInventory.length; i++) {
+            ItemData itemData = newInventory.getItems().get(i);
+            ItemStack originalStack = getSnapshotSlot(original, i);
+            if (!isSlotChangedByShop(originalStack, itemData, filter)) {
+                continue;
+            }
+            touchedInventory[i] = true;
+            ItemStack currentStack = getSnapshotSlot(current, i);
+            if (!ItemStack.matches(originalStack, currentStack)) {
+                conflicts.add("Item in slot " + i + " changed.");
             }
         }
+        
+        boolean[] touchedEchest = new boolean[newEchest != null && filter.includesEchest() ? newEchest.getSize() : 0];
+        ItemStack[] originalEchest = original.getEnderChest();
+        ItemStack[] currentEchest = current.getEnderChest();
+        for (int i = 0; i < touchedEchest.length; i++) {
+            ItemData itemData = newEchest.getItems().get(i);
+            ItemStack originalStack = i < originalEchest.length ? originalEchest[i] : ItemStack.EMPTY;
+            if (!isSlotChangedByShop(originalStack, itemData, filter)) {
+                continue;
+            }
+            touchedEchest[i] = true;
+            ItemStack currentStack = i < currentEchest.length ? currentEchest[i] : ItemStack.EMPTY;
+            if (!ItemStack.matches(originalStack, currentStack)) {
+                conflicts.add("Ender chest slot " + i + " changed.");
+            }
+        }
+        
+        DebugLogger.log("Inventory merge found " + conflicts.size() + " conflicts", Config.DebugVerbosity.DEFAULT);
+        return new InventoryMerge(touchedInventory, touchedEchest, conflicts);
     }
 
     /**
@@ -241,123 +191,111 @@ public class InventoryManager {
     }
     
     /**
-     * Generates a diff between original and new inventory including ender chest for display to the player
+     * Generates a diff between original and new inventory including ender chest for display to the player.
+     * Only slots that actually changed are counted, so the cost scales with the size of the purchase.
      */
     public static InventoryDiff generateInventoryDiff(InventorySnapshot original, InventoryData newInventory, ContainerData newEchest) {
+        return generateInventoryDiff(original, newInventory, newEchest, InventoryFilter.ALL);
+    }
+    
+    /**
+     * Generates a diff between original and new inventory including ender chest, ignoring slots hidden by a shop filter
+     */
+    public static InventoryDiff generateInventoryDiff(InventorySnapshot original, InventoryData newInventory, ContainerData newEchest, InventoryFilter filter) {
         DebugLogger.log("Generating inventory diff", Config.DebugVerbosity.MINIMAL);
+        long start = System.nanoTime();
         
         InventoryDiff diff = new InventoryDiff();
-        Map<Integer, ItemData> newItems = newInventory.getItems();
-        
-        // Create a map of items in the original inventory for easy lookup
-        java.util.Map<String, Integer> originalItemCounts = new java.util.HashMap<>();
         
-        // First, add all items from the main inventory
-        for (int i = 0; i < original.getMainInventory().length; i++) {
-            ItemStack stack = original.getMainInventory()[i];
-            if (!stack.isEmpty()) {
-                String itemKey = getItemKey(stack);
-                originalItemCounts.put(itemKey, originalItemCounts.getOrDefault(itemKey, 0) + stack.getCount());
+        // Count original items negatively and new items positively, so only the net changes remain
+        ItemMultiset changes = new ItemMultiset();
+        int changedSlots = 0;
+        
+        if (filter.includesInventory()) {
+            for (int i = 0; i < newInventory.getSize(); i++) {
+                ItemStack originalStack = getSnapshotSlot(original, i);
+                ItemData itemData = newInventory.getItems().get(i);
+                if (isSlotChangedByShop(originalStack, itemData, filter)) {
+                    changes.add(originalStack, -1);
+                    changes.add(itemData, 1);
+                    changedSlots++;
+                }
             }
         }
         
-        // Add armor items
-        for (ItemStack stack : original.getArmorInventory()) {
-            if (!stack.isEmpty()) {
-                String itemKey = getItemKey(stack);
-                originalItemCounts.put(itemKey, originalItemCounts.getOrDefault(itemKey, 0) + stack.getCount());
+        // The ender chest is only part of the diff if the shop returned one
+        if (newEchest != null && filter.includesEchest()) {
+            ItemStack[] originalEchest = original.getEnderChest();
+            for (int i = 0; i < newEchest.getSize(); i++) {
+                ItemStack originalStack = i < originalEchest.length ? originalEchest[i] : ItemStack.EMPTY;
+                ItemData itemData = newEchest.getItems().get(i);
+                if (isSlotChangedByShop(originalStack, itemData, filter)) {
+                    changes.add(originalStack, -1);
+                    changes.add(itemData, 1);
+                    changedSlots++;
+                }
             }
         }
         
-        // Add offhand items
-        for (ItemStack stack : original.getOffhandInventory()) {
-            if (!stack.isEmpty()) {
-                String itemKey = getItemKey(stack);
-                originalItemCounts.put(itemKey, originalItemCounts.getOrDefault(itemKey, 0) + stack.getCount());
-            }
-        }
+        DebugLogger.log("Inventory diff covers " + changedSlots + " changed slots", Config.DebugVerbosity.DEFAULT);
         
-        // Add ender chest items
-        for (ItemStack stack : original.getEnderChest()) {
-            if (!stack.isEmpty()) {
-                String itemKey = getItemKey(stack);
-                originalItemCounts.put(itemKey, originalItemCounts.getOrDefault(itemKey, 0) + stack.getCount());
+        changes.forEachNonZero((itemId, count) -> {
+            if (count > 0) {
+                diff.addItem(itemId, count);
+            } else {
+                diff.removeItem(itemId, -count);
             }
-        }
+        });
         
-        // Create a map for the new inventory
-        java.util.Map<String, Integer> newItemCounts = new java.util.HashMap<>();            // Process new inventory items
-        for (int i = 0; i < newInventory.getSize(); i++) {
-            ItemData itemData = newItems.get(i);
-            if (itemData != null) {
-                String itemKey = itemData.getItemId();
-                if (itemData.getNbt() != null) {
-                    // Use the NBT hash to make the key unique
-                    itemKey += ":" + itemData.getNbt().hashCode();
-                    DebugLogger.log("Generated new item key for " + itemKey + " with NBT hash: " + itemData.getNbt().hashCode(), Config.DebugVerbosity.ALL);
-                }
-                newItemCounts.put(itemKey, newItemCounts.getOrDefault(itemKey, 0) + itemData.getCount());
-            }
-        }
-          // Process new ender chest items if provided
-        if (newEchest != null) {
-            Map<Integer, ItemData> newEchestItems = newEchest.getItems();
-            for (int i = 0; i < newEchest.getSize(); i++) {
-                ItemData itemData = newEchestItems.get(i);
-                if (itemData != null) {
-                    String itemKey = itemData.getItemId();
-                    if (itemData.getNbt() != null) {
-                        // Use the NBT hash to make the key unique
-                        itemKey += ":" + itemData.getNbt().hashCode();
-                        DebugLogger.log("Generated new echest item key for " + itemKey + " with NBT hash: " + itemData.getNbt().hashCode(), Config.DebugVerbosity.ALL);
-                    }
-                    newItemCounts.put(itemKey, newItemCounts.getOrDefault(itemKey, 0) + itemData.getCount());
-                }
-            }
+        ShopMetrics.recordSince(ShopMetrics.Phase.DIFF, start);
+        return diff;
+    }
+
+    /**
+     * Gets the item in a snapshot using the player inventory slot numbering (main, armor, offhand)
+     */
+    private static ItemStack getSnapshotSlot(InventorySnapshot snapshot, int index) {
+        int mainSize = snapshot.getMainInventory().length;
+        int armorSize = snapshot.getArmorInventory().length;
+        if (index < mainSize) {
+            return snapshot.getMainInventory()[index];
+        } else if (index < mainSize + armorSize) {
+            return snapshot.getArmorInventory()[index - mainSize];
+        } else if (index < mainSize + armorSize + snapshot.getOffhandInventory().length) {
+            return snapshot.getOffhandInventory()[index - mainSize - armorSize];
         }
-          
-        // Compare original and new inventories to generate diff
-        java.util.Set<String> allItems = new java.util.HashSet<>();
-        allItems.addAll(originalItemCounts.keySet());
-        allItems.addAll(newItemCounts.keySet());
-        
-        for (String itemKey : allItems) {
-            int originalCount = originalItemCounts.getOrDefault(itemKey, 0);
-            int newCount = newItemCounts.getOrDefault(itemKey, 0);
-            int diff_count = newCount - originalCount;
-              if (diff_count != 0) {
-                // Use the full item key for better identification
-                String itemId = itemKey;
-                // Extract just the item ID part without the NBT data for display
-                if (itemKey.contains(":nbt")) {
-                    itemId = itemKey.substring(0, itemKey.indexOf(":nbt"));
-                }
-                
-                if (diff_count > 0) {
-                    diff.addItem(itemId, diff_count);
-                } else {
-                    diff.removeItem(itemId, -diff_count);
-                }
-            }
+        return ItemStack.EMPTY;
+    }
+
+    /**
+     * Checks if the shop result changes a slot. Slots holding items hidden by the filter were
+     * never sent to the shop, so they count as unchanged whatever the shop returned for them.
+     */
+    private static boolean isSlotChangedByShop(ItemStack originalStack, ItemData itemData, InventoryFilter filter) {
+        if (!filter.accepts(originalStack)) {
+            return false;
         }
-        
-        return diff;
+        return !stackMatchesItemData(originalStack, itemData);
     }
 
     /**
-     * Helper method to generate a unique key for an item based on its ID and NBT data
+     * Checks if an item stack is identical to the item data received from the API
+     * @param stack The item stack, may be empty
+     * @param item The item data, may be null for an empty slot
+     * @return true if both describe the same item, count and NBT
      */
-    private static String getItemKey(ItemStack stack) {
-        String itemKey = net.minecraft.core.registries.BuiltInRegistries.ITEM.getKey(stack.getItem()).toString();
-        if (stack.hasTag()) {
-            // Use our custom NBT serializer to get a consistent JSON representation
-            JsonObject nbtJson = (JsonObject) NbtSerializer.serializeNbt(stack.getTag());
-            // Log for debugging
-            DebugLogger.log("Generated item key for " + itemKey + " with NBT: " + nbtJson, Config.DebugVerbosity.ALL);
-            // Add NBT hash to make the key unique for different NBT data
-            itemKey += ":" + nbtJson.hashCode();
+    public static boolean stackMatchesItemData(ItemStack stack, ItemData item) {
+        if (item == null) {
+            return stack.isEmpty();
+        }
+        if (stack.isEmpty()) {
+            return false;
         }
-        return itemKey;
+        String itemId = net.minecraft.core.registries.BuiltInRegistries.ITEM.getKey(stack.getItem()).toString();
+        int count = item.getCount() != null ? item.getCount() : 1;
+        return itemId.equals(item.getItemId())
+                && stack.getCount() == count
+                && NbtHasher.canonicallyEqual(stack.getTag(), item.getNbt());
     }
 
     /**
@@ -417,9 +355,8 @@ public class InventoryManager {
             // Use our enhanced NBT debugging
             NbtDebugUtils.logJsonNbt(itemData.getNbt(), "New item from API");
             
-            // Convert current NBT to JSON for comparison
-            JsonObject currentNbtJson = (JsonObject) NbtSerializer.serializeNbt(current.getTag());
-            boolean nbtMatch = currentNbtJson.equals(itemData.getNbt());
+            // Compare canonically, without converting the current NBT to JSON
+            boolean nbtMatch = NbtHasher.canonicallyEqual(current.getTag(), itemData.getNbt());
             
             if (nbtMatch) {
                 DebugLogger.log("NBT data matches!", Config.DebugVerbosity.DEFAULT);
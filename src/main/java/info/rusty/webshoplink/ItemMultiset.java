@@ -0,0 +1,84 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Counts items by type and NBT, keyed by their canonical {@link NbtHasher} hash.
+ * Counts may go negative, which lets a single multiset hold the difference between two inventories.
+ * Hash collisions are detected by comparing against the first item stored under a key,
+ * and resolved by probing to the next key.
+ */
+public class ItemMultiset {
+    private final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+    private final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * The item id and NBT of the first item stored under a key
+     */
+    private record Entry(String itemId, Object nbt) {
+    }
+
+    /**
+     * Adds an item stack from the game to the multiset
+     * @param stack The stack to add, ignored if empty
+     * @param sign 1 to add the stack count, -1 to subtract it
+     */
+    public void add(ItemStack stack, int sign) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        String itemId = BuiltInRegistries.ITEM.getKey(stack.getItem()).toString();
+        long nbtHash = stack.hasTag() ? NbtHasher.hash(stack.getTag()) : 0L;
+        add(itemId, stack.hasTag() ? stack.getTag() : null, nbtHash, sign * stack.getCount());
+    }
+
+    /**
+     * Adds an item received from the API to the multiset
+     * @param item The item data to add, ignored if null
+     * @param sign 1 to add the item count, -1 to subtract it
+     */
+    public void add(DataTypes.ItemData item, int sign) {
+        if (item == null) {
+            return;
+        }
+        JsonObject nbt = item.getNbt();
+        long nbtHash = nbt != null ? NbtHasher.hash(nbt) : 0L;
+        int count = item.getCount() != null ? item.getCount() : 1;
+        add(item.getItemId(), nbt, nbtHash, sign * count);
+    }
+
+    private void add(String itemId, Object nbt, long nbtHash, int count) {
+        long key = NbtHasher.hashItem(itemId, nbtHash);
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entries.put(key, new Entry(itemId, nbt));
+                break;
+            }
+            if (entry.itemId().equals(itemId) && NbtHasher.canonicallyEqual(entry.nbt(), nbt)) {
+                break;
+            }
+            DebugLogger.log("Item key collision for " + itemId + ", probing next key", Config.DebugVerbosity.ALL);
+            key = NbtHasher.hashItem(itemId, key);
+        }
+        counts.addTo(key, count);
+    }
+
+    /**
+     * Calls the consumer with the item id and count of every entry whose count is not zero
+     */
+    public void forEachNonZero(ObjIntConsumer<String> consumer) {
+        for (Long2IntMap.Entry count : counts.long2IntEntrySet()) {
+            if (count.getIntValue() != 0) {
+                consumer.accept(entries.get(count.getLongKey()).itemId(), count.getIntValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import net.minecraft.nbt.*;
+
+import java.util.Arrays;
+
+/**
+ * Computes canonical 64-bit hashes of NBT data.
+ *
+ * Hashes are computed over the wire-level type model used by {@link NbtSerializer}
+ * (compound, list, string, integral, floating), with compound keys visited in sorted order.
+ * This means a {@link CompoundTag} and its JSON representation hash to the same value,
+ * so items can be keyed without serializing them to JSON first.
+ * Since a 64-bit hash can still collide, {@link #canonicallyEqual(Object, Object)} is provided
+ * as an exact fallback.
+ */
+public class NbtHasher {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long PRIME = 0x100000001B3L;
+
+    // Wire-level type markers, mixed into the hash so "1" and 1 do not collide
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_COMPOUND = 1;
+    private static final int TYPE_LIST = 2;
+    private static final int TYPE_STRING = 3;
+    private static final int TYPE_INTEGRAL = 4;
+    private static final int TYPE_FLOATING = 5;
+
+    /**
+     * Hashes an NBT compound tag
+     * @param tag The tag to hash, may be null
+     * @return The canonical 64-bit hash
+     */
+    public static long hash(CompoundTag tag) {
+        return finish(hashValue(SEED, tag));
+    }
+
+    /**
+     * Hashes NBT data received in JSON form, as sent by the API
+     * @param json The JSON object to hash, may be null
+     * @return The canonical 64-bit hash, identical to the hash of the parsed CompoundTag
+     */
+    public static long hash(JsonObject json) {
+        return finish(hashValue(SEED, json));
+    }
+
+    /**
+     * Combines an item id with the hash of its NBT data into a single item key
+     * @param itemId The registry id of the item
+     * @param nbtHash The hash returned by one of the {@code hash} methods, or 0 if the item has no NBT
+     * @return A 64-bit key identifying the item type and its NBT
+     */
+    public static long hashItem(String itemId, long nbtHash) {
+        long h = mixString(SEED, itemId);
+        h = mix(h, nbtHash);
+        return finish(h);
+    }
+
+    /**
+     * Checks whether two NBT values are equal under the canonical model used for hashing.
+     * Each value may be a {@link Tag}, a {@link JsonElement} or null.
+     */
+    public static boolean canonicallyEqual(Object a, Object b) {
+        int typeA = typeOf(a);
+        int typeB = typeOf(b);
+        if (typeA != typeB) {
+            return false;
+        }
+
+        switch (typeA) {
+            case TYPE_NULL:
+                return true;
+            case TYPE_STRING:
+                return stringValue(a).equals(stringValue(b));
+            case TYPE_INTEGRAL:
+                return integralValue(a) == integralValue(b);
+            case TYPE_FLOATING:
+                return Double.doubleToLongBits(floatingValue(a)) == Double.doubleToLongBits(floatingValue(b));
+            case TYPE_LIST: {
+                int size = listSize(a);
+                if (size != listSize(b)) {
+                    return false;
+                }
+                for (int i = 0; i < size; i++) {
+                    if (!canonicallyEqual(listElement(a, i), listElement(b, i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case TYPE_COMPOUND: {
+                String[] keysA = sortedKeys(a);
+                String[] keysB = sortedKeys(b);
+                if (!Arrays.equals(keysA, keysB)) {
+                    return false;
+                }
+                for (String key : keysA) {
+                    if (!canonicallyEqual(compoundValue(a, key), compoundValue(b, key))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private static long hashValue(long h, Object value) {
+        int type = typeOf(value);
+        h = mix(h, type);
+
+        switch (type) {
+            case TYPE_STRING:
+                return mixString(h, stringValue(value));
+            case TYPE_INTEGRAL:
+                return mix(h, integralValue(value));
+            case TYPE_FLOATING:
+                return mix(h, Double.doubleToLongBits(floatingValue(value)));
+            case TYPE_LIST: {
+                int size = listSize(value);
+                h = mix(h, size);
+                for (int i = 0; i < size; i++) {
+                    h = hashValue(h, listElement(value, i));
+                }
+                return h;
+            }
+            case TYPE_COMPOUND: {
+                String[] keys = sortedKeys(value);
+                h = mix(h, keys.length);
+                for (String key : keys) {
+                    h = mixString(h, key);
+                    h = hashValue(h, compoundValue(value, key));
+                }
+                return h;
+            }
+            default:
+                return h;
+        }
+    }
+
+    /**
+     * Maps a Tag or JsonElement to its wire-level type, following the same rules
+     * as {@link NbtSerializer} uses when converting between the two.
+     */
+    private static int typeOf(Object value) {
+        if (value == null || value instanceof EndTag) {
+            return TYPE_NULL;
+        }
+        if (value instanceof Tag) {
+            if (value instanceof CompoundTag) {
+                return TYPE_COMPOUND;
+            } else if (value instanceof CollectionTag<?>) {
+                // ListTag, ByteArrayTag, IntArrayTag and LongArrayTag are all sent as JSON arrays
+                return TYPE_LIST;
+            } else if (value instanceof FloatTag || value instanceof DoubleTag) {
+                return TYPE_FLOATING;
+            } else if (value instanceof NumericTag) {
+                return TYPE_INTEGRAL;
+            }
+            return TYPE_STRING;
+        }
+        JsonElement json = (JsonElement) value;
+        if (json.isJsonNull()) {
+            return TYPE_NULL;
+        } else if (json.isJsonObject()) {
+            return TYPE_COMPOUND;
+        } else if (json.isJsonArray()) {
+            return TYPE_LIST;
+        }
+        JsonPrimitive primitive = json.getAsJsonPrimitive();
+        if (primitive.isString()) {
+            return TYPE_STRING;
+        } else if (primitive.isBoolean()) {
+            // Booleans are stored as byte tags when parsed
+            return TYPE_INTEGRAL;
+        }
+        return primitive.getAsNumber().toString().contains(".") ? TYPE_FLOATING : TYPE_INTEGRAL;
+    }
+
+    private static String stringValue(Object value) {
+        if (value instanceof StringTag stringTag) {
+            return stringTag.getAsString();
+        } else if (value instanceof Tag tag) {
+            // Same fallback as NbtSerializer for unknown tag types
+            return tag.toString();
+        }
+        return ((JsonElement) value).getAsString();
+    }
+
+    private static long integralValue(Object value) {
+        if (value instanceof NumericTag numericTag) {
+            return numericTag.getAsLong();
+        }
+        JsonPrimitive primitive = ((JsonElement) value).getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean() ? 1 : 0;
+        }
+        return primitive.getAsNumber().longValue();
+    }
+
+    private static double floatingValue(Object value) {
+        if (value instanceof FloatTag floatTag) {
+            // Floats travel as their decimal string, so compare them the way they will be parsed back
+            return Double.parseDouble(Float.toString(floatTag.getAsFloat()));
+        } else if (value instanceof NumericTag numericTag) {
+            return numericTag.getAsDouble();
+        }
+        return ((JsonElement) value).getAsNumber().doubleValue();
+    }
+
+    private static int listSize(Object value) {
+        if (value instanceof CollectionTag<?> collectionTag) {
+            return collectionTag.size();
+        }
+        return ((JsonArray) value).size();
+    }
+
+    private static Object listElement(Object value, int index) {
+        if (value instanceof CollectionTag<?> collectionTag) {
+            return collectionTag.get(index);
+        }
+        return ((JsonArray) value).get(index);
+    }
+
+    private static String[] sortedKeys(Object value) {
+        String[] keys;
+        if (value instanceof CompoundTag compoundTag) {
+            keys = compoundTag.getAllKeys().toArray(new String[0]);
+        } else {
+            keys = ((JsonObject) value).keySet().toArray(new String[0]);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static Object compoundValue(Object value, String key) {
+        if (value instanceof CompoundTag compoundTag) {
+            return compoundTag.get(key);
+        }
+        return ((JsonObject) value).get(key);
+    }
+
+    private static long mixString(long h, String value) {
+        h = mix(h, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        return (h ^ finish(value)) * PRIME;
+    }
+
+    // MurmurHash3 64-bit finalizer
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1AC85A3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+package info.rusty.webshoplink;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Collects cancel and setApplied requests and sends them to the batch endpoints in bulk,
+ * so an expiry sweep or many players leaving at once don't turn into hundreds of single requests.
+ *
+ * A request waits at most {@code notificationBatchInterval} milliseconds for its batch, and a batch that reaches
+ * {@code notificationBatchMaxSize} is sent right away. Each request gets the result of its own process.
+ * Without a batch endpoint, or if the API doesn't support it, requests are sent one by one as before.
+ */
+public class NotificationBatcher {
+    /**
+     * The operations that can be batched
+     */
+    public enum Operation {
+        CANCEL("cancelBatch", ShopMetrics.Phase.API_CANCEL_BATCH),
+        APPLIED("setAppliedBatch", ShopMetrics.Phase.API_APPLIED_BATCH);
+
+        private final String endpointName;
+        private final ShopMetrics.Phase phase;
+        private final Object lock = new Object();
+        private List<Pending> pending = new ArrayList<>();
+        private ScheduledFuture<?> scheduledFlush;
+        private volatile boolean unsupported;
+
+        Operation(String endpointName, ShopMetrics.Phase phase) {
+            this.endpointName = endpointName;
+            this.phase = phase;
+        }
+
+        private EndpointTemplate getTemplate() {
+            return this == CANCEL ? Config.endpoints.batchCancel() : Config.endpoints.batchApplied();
+        }
+
+        private boolean isEnabled() {
+            return scheduler != null && !unsupported && !getTemplate().isEmpty();
+        }
+    }
+
+    /**
+     * A request waiting for its batch
+     * @param single Sends the request on its own, if it can't be batched
+     */
+    private record Pending(UUID processId, String twoFactorCode, String idempotencyKey,
+                           Supplier<CompletableFuture<Boolean>> single, CompletableFuture<Boolean> response) {
+    }
+
+    private static volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Starts the flush scheduler if a batch endpoint is configured
+     */
+    public static synchronized void start() {
+        stop();
+        for (Operation operation : Operation.values()) {
+            operation.unsupported = false;
+        }
+        if ((Config.shopBatchCancelEndpoint == null || Config.shopBatchCancelEndpoint.isEmpty())
+                && (Config.shopBatchAppliedEndpoint == null || Config.shopBatchAppliedEndpoint.isEmpty())) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Notify");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the scheduler and sends the requests that are still waiting
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        for (Operation operation : Operation.values()) {
+            flush(operation);
+        }
+    }
+
+    /**
+     * Adds a request to the current batch of its operation, or sends it right away if the operation isn't batched
+     * @param single Sends the request on its own
+     * @return A CompletableFuture that completes with true when the API accepted the request
+     */
+    public static CompletableFuture<Boolean> submit(Operation operation, UUID processId, String twoFactorCode, String idempotencyKey,
+                                                    Supplier<CompletableFuture<Boolean>> single) {
+        if (!operation.isEnabled()) {
+            return single.get();
+        }
+        Pending request = new Pending(processId, twoFactorCode, idempotencyKey, single, new CompletableFuture<>());
+        List<Pending> batch = null;
+        synchronized (operation.lock) {
+            operation.pending.add(request);
+            if (operation.pending.size() >= Config.notificationBatchMaxSize) {
+                batch = take(operation);
+            } else if (operation.pending.size() == 1 && !scheduleFlush(operation)) {
+                // Stopped in the meantime
+                batch = take(operation);
+            }
+        }
+        if (batch != null) {
+            send(operation, batch);
+        }
+        return request.response();
+    }
+
+    // Must hold the operation's lock
+    private static boolean scheduleFlush(Operation operation) {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return false;
+        }
+        try {
+            operation.scheduledFlush = executor.schedule(() -> flush(operation), Config.notificationBatchInterval, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Must hold the operation's lock
+    private static List<Pending> take(Operation operation) {
+        List<Pending> batch = operation.pending;
+        operation.pending = new ArrayList<>();
+        if (operation.scheduledFlush != null) {
+            operation.scheduledFlush.cancel(false);
+            operation.scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private static void flush(Operation operation) {
+        List<Pending> batch;
+        synchronized (operation.lock) {
+            batch = take(operation);
+        }
+        if (!batch.isEmpty()) {
+            send(operation, batch);
+        }
+    }
+
+    private static void send(Operation operation, List<Pending> batch) {
+        try {
+            if (batch.size() == 1 || operation.unsupported) {
+                sendEach(batch);
+                return;
+            }
+            // Each process has to be notified on the backend that created it
+            Map<BackendRouter.Backend, List<Pending>> byBackend = new LinkedHashMap<>();
+            for (Pending request : batch) {
+                byBackend.computeIfAbsent(BackendRouter.forProcess(request.processId()), backend -> new ArrayList<>()).add(request);
+            }
+            byBackend.forEach((backend, requests) -> {
+                if (requests.size() == 1) {
+                    sendEach(requests);
+                } else {
+                    send(operation, backend, requests);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Callers wait for every response, so none may be left open, e.g. when a backend URL is invalid
+            DebugLogger.logError("Failed to send " + operation.endpointName + " requests", e);
+            for (Pending request : batch) {
+                request.response().completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void send(Operation operation, BackendRouter.Backend backend, List<Pending> batch) {
+        ShopMetrics.increment("webshoplink_notification_batches_total{endpoint=\"" + operation.endpointName + "\"}");
+        ShopMetrics.add("webshoplink_notification_batched_total{endpoint=\"" + operation.endpointName + "\"}", batch.size());
+        List<Map<String, Object>> sessions = new ArrayList<>(batch.size());
+        for (Pending request : batch) {
+            Map<String, Object> session = new HashMap<>();
+            session.put("uuid", request.processId().toString());
+            session.put("tfaCode", request.twoFactorCode());
+            session.put("idempotencyKey", request.idempotencyKey());
+            sessions.add(session);
+        }
+        ApiService.sendNotificationBatch(operation.endpointName, backend, operation.getTemplate(), operation.phase, sessions)
+            .whenComplete((results, error) -> {
+                if (error != null) {
+                    ErrorResponse errorResponse = error.getCause() instanceof ErrorResponse cause ? cause
+                            : new ErrorResponse("API communication error: Failed to connect to shop server", 0);
+                    for (Pending request : batch) {
+                        request.response().completeExceptionally(new CompletionException(errorResponse));
+                    }
+                    return;
+                }
+                if (results == null) {
+                    if (!operation.unsupported) {
+                        operation.unsupported = true;
+                        DebugLogger.log("Shop API does not support " + operation.endpointName + " requests, sending them one by one", Config.DebugVerbosity.MINIMAL);
+                    }
+                    sendEach(batch);
+                    return;
+                }
+                // The API may answer in any order, a request without a result fails
+                Map<String, BatchResult> resultsByUuid = new HashMap<>();
+                for (BatchResult result : results) {
+                    if (result != null && result.getUuid() != null) {
+                        resultsByUuid.put(result.getUuid(), result);
+                    }
+                }
+                for (Pending request : batch) {
+                    complete(request, resultsByUuid.get(request.processId().toString()));
+                }
+            });
+    }
+
+    private static void complete(Pending request, BatchResult result) {
+        if (result != null && result.getStatus() == 200) {
+            request.response().complete(true);
+            return;
+        }
+        String errorMsg = result == null ? "Invalid response: Missing session in batch response"
+                : result.getError() != null ? result.getError()
+                : result.getMessage() != null ? result.getMessage()
+                : "API error: " + result.getStatus();
+        DebugLogger.logError("Batched request for shop process " + request.processId() + " failed: " + errorMsg, null);
+        // Wrapped like the failures of single requests, so callers find the ErrorResponse as the cause
+        request.response().completeExceptionally(new CompletionException(new ErrorResponse(errorMsg, result == null ? 0 : result.getStatus())));
+    }
+
+    private static void sendEach(List<Pending> batch) {
+        for (Pending request : batch) {
+            CompletableFuture<Boolean> single;
+            try {
+                single = request.single().get();
+            } catch (RuntimeException e) {
+                // Fail only this request, the rest of the batch is still sent
+                DebugLogger.logError("Failed to send request for shop process " + request.processId(), e);
+                request.response().completeExceptionally(e);
+                continue;
+            }
+            single.whenComplete((success, error) -> {
+                if (error != null) {
+                    request.response().completeExceptionally(error);
+                } else {
+                    request.response().complete(success);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package info.rusty.webshoplink;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the shop operations of each player strictly one after another, without blocking any thread.
+ *
+ * An operation is everything a command starts, including its API requests, and is represented by the future that
+ * completes when it is done. Each submitted operation is chained behind the player's previous one with a single
+ * atomic swap, so players never wait on each other. Operations always start on the server thread, since they read
+ * the player's inventory. If an operation hangs, the mailbox moves on after {@link #OPERATION_TIMEOUT_SECONDS}.
+ */
+public class PlayerMailbox {
+    private static final long OPERATION_TIMEOUT_SECONDS = 60;
+
+    // The last submitted operation per player, removed again once it completed
+    private static final Map<UUID, CompletableFuture<Void>> TAILS = new ConcurrentHashMap<>();
+
+    /**
+     * Runs an operation after all operations previously submitted for the player have completed
+     * @param player The player the operation belongs to
+     * @param operation Starts the operation on the server thread and returns a future that completes when it is done
+     * @return A future that completes when the operation is done, failed or timed out
+     */
+    public static CompletableFuture<Void> submit(ServerPlayer player, Supplier<CompletableFuture<Void>> operation) {
+        UUID playerId = player.getUUID();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = TAILS.put(playerId, done);
+        done.whenComplete((ignored, error) -> TAILS.remove(playerId, done));
+
+        MinecraftServer server = player.server;
+        if (previous == null && server.isSameThread()) {
+            // Nothing queued, run it right away as part of the command
+            run(operation, done);
+        } else {
+            ShopMetrics.increment("webshoplink_mailbox_queued_total");
+            CompletableFuture<Void> ready = previous != null ? previous : CompletableFuture.completedFuture(null);
+            // Resumed on the server thread outside of its command, so it is timed as an entry point of its own
+            ready.whenCompleteAsync((ignored, error) -> TickProfiler.timeEntry(() -> run(operation, done)), server);
+        }
+        return done;
+    }
+
+    /**
+     * @return The number of players with an operation running or queued
+     */
+    public static int getBusyPlayerCount() {
+        return TAILS.size();
+    }
+
+    private static void run(Supplier<CompletableFuture<Void>> operation, CompletableFuture<Void> done) {
+        try {
+            operation.get()
+                .orTimeout(OPERATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        DebugLogger.logError("Shop operation did not complete normally", error);
+                    }
+                    done.complete(null);
+                });
+        } catch (RuntimeException e) {
+            DebugLogger.logError("Shop operation failed to start", e);
+            done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Bounds the memory and stack a shop API response can take, so a broken or hostile backend can't take the server down.
+ *
+ * Bodies are read with {@link #bodyHandler}, which aborts the exchange as soon as more than {@code maxResponseBytes}
+ * arrive, or before reading anything if the Content-Length is already larger. Gzip bodies are limited before and
+ * after decompression. Bodies that are turned into NBT are checked with {@link #checkJson} first, which walks the
+ * JSON without recursion. Violations fail the request with an {@link ErrorResponse} of type
+ * {@link ErrorResponse.Type#RESPONSE_TOO_LARGE} or {@link ErrorResponse.Type#RESPONSE_TOO_COMPLEX}.
+ */
+public class ResponseLimits {
+    /**
+     * Creates a body handler that reads the body as UTF-8 text, decompressed if it is gzip encoded,
+     * and aborts the exchange once it exceeds {@code maxResponseBytes}
+     * @param endpointName The endpoint name used in metrics
+     */
+    public static HttpResponse.BodyHandler<String> bodyHandler(String endpointName) {
+        return responseInfo -> {
+            int maxBytes = Config.maxResponseBytes;
+            int statusCode = responseInfo.statusCode();
+            boolean gzip = Compression.GZIP.equalsIgnoreCase(responseInfo.headers().firstValue("Content-Encoding").orElse("").trim());
+            long declaredLength = responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1);
+            BoundedSubscriber bounded = new BoundedSubscriber(endpointName, statusCode, maxBytes, declaredLength);
+            return HttpResponse.BodySubscribers.mapping(bounded, bytes -> {
+                if (!gzip) {
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                byte[] decompressed = Compression.gunzip(bytes, maxBytes);
+                if (decompressed.length > maxBytes) {
+                    throw tooLarge(endpointName, statusCode, maxBytes);
+                }
+                return new String(decompressed, StandardCharsets.UTF_8);
+            });
+        };
+    }
+
+    /**
+     * Checks that a JSON body stays within {@code maxResponseDepth} and {@code maxResponseElements}
+     * before it is parsed into NBT, whose conversion recurses once per nesting level.
+     * Malformed JSON is left to the parser, which reports it as before.
+     * @param endpointName The endpoint name used in metrics
+     * @param statusCode The status code reported with the error
+     * @throws ErrorResponse if the body exceeds a limit
+     */
+    public static void checkJson(String endpointName, String body, int statusCode) {
+        int maxDepth = Config.maxResponseDepth;
+        int maxElements = Config.maxResponseElements;
+        int depth = 0;
+        int elements = 0;
+        try (JsonReader reader = new JsonReader(new StringReader(body))) {
+            // Gson parses leniently too
+            reader.setLenient(true);
+            while (true) {
+                JsonToken token = reader.peek();
+                switch (token) {
+                    case BEGIN_OBJECT -> {
+                        reader.beginObject();
+                        depth++;
+                        elements++;
+                    }
+                    case BEGIN_ARRAY -> {
+                        reader.beginArray();
+                        depth++;
+                        elements++;
+                    }
+                    case END_OBJECT -> {
+                        reader.endObject();
+                        depth--;
+                    }
+                    case END_ARRAY -> {
+                        reader.endArray();
+                        depth--;
+                    }
+                    case NAME -> reader.nextName();
+                    case END_DOCUMENT -> {
+                        return;
+                    }
+                    default -> {
+                        reader.skipValue();
+                        elements++;
+                    }
+                }
+                if (depth > maxDepth) {
+                    throw tooComplex(endpointName, statusCode, "depth", "Invalid response: Response nests deeper than " + maxDepth + " levels");
+                }
+                if (elements > maxElements) {
+                    throw tooComplex(endpointName, statusCode, "elements", "Invalid response: Response has more than " + maxElements + " elements");
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Malformed, the parser reports it
+        }
+    }
+
+    /**
+     * @return The first ErrorResponse in the cause chain of a failed request, or null if there is none.
+     * The HTTP client may wrap errors of the body handler.
+     */
+    public static ErrorResponse findErrorResponse(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ErrorResponse errorResponse) {
+                return errorResponse;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private static ErrorResponse tooLarge(String endpointName, int statusCode, int maxBytes) {
+        count(endpointName, "size");
+        DebugLogger.logError("Aborted " + endpointName + " response larger than " + maxBytes + " bytes", null);
+        return new ErrorResponse("Invalid response: Response body exceeds " + maxBytes + " bytes", statusCode, ErrorResponse.Type.RESPONSE_TOO_LARGE);
+    }
+
+    private static ErrorResponse tooComplex(String endpointName, int statusCode, String limit, String errorMessage) {
+        count(endpointName, limit);
+        DebugLogger.logError("Rejected " + endpointName + " response: " + errorMessage, null);
+        return new ErrorResponse(errorMessage, statusCode, ErrorResponse.Type.RESPONSE_TOO_COMPLEX);
+    }
+
+    private static void count(String endpointName, String limit) {
+        ShopMetrics.increment("webshoplink_response_limit_exceeded_total{endpoint=\"" + endpointName + "\",limit=\"" + limit + "\"}");
+    }
+
+    /**
+     * Collects the body like {@link HttpResponse.BodySubscribers#ofByteArray()}, but cancels the stream and fails
+     * once the limit is exceeded, so the rest of the body is never read
+     */
+    private static final class BoundedSubscriber implements HttpResponse.BodySubscriber<byte[]> {
+        private final String endpointName;
+        private final int statusCode;
+        private final int maxBytes;
+        private final long declaredLength;
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private long received;
+
+        BoundedSubscriber(String endpointName, int statusCode, int maxBytes, long declaredLength) {
+            this.endpointName = endpointName;
+            this.statusCode = statusCode;
+            this.maxBytes = maxBytes;
+            this.declaredLength = declaredLength;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (declaredLength > maxBytes) {
+                abort();
+                return;
+            }
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (body.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                received += item.remaining();
+            }
+            if (received > maxBytes) {
+                abort();
+                return;
+            }
+            buffers.addAll(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            buffers.clear();
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (body.isDone()) {
+                return;
+            }
+            byte[] bytes = new byte[(int) received];
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int length = buffer.remaining();
+                buffer.get(bytes, offset, length);
+                offset += length;
+            }
+            buffers.clear();
+            body.complete(bytes);
+        }
+
+        private void abort() {
+            subscription.cancel();
+            buffers.clear();
+            body.completeExceptionally(tooLarge(endpointName, statusCode, maxBytes));
+        }
+    }
+}
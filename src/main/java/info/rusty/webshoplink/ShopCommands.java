@@ -10,16 +10,21 @@ import net.minecraft.network.chat.ClickEvent;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.HoverEvent;
 import net.minecraft.network.chat.Style;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.entity.player.Inventory;
 import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.server.ServerLifecycleHooks;
 import org.slf4j.Logger;
 import com.mojang.logging.LogUtils;
 
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static info.rusty.webshoplink.DataTypes.*;
 import static info.rusty.webshoplink.InventoryManager.*;
@@ -35,6 +40,13 @@ public class ShopCommands {
     // Store active shopping processes - Map<UUID, ShopProcess>
     private static final Map<UUID, ShopProcess> ACTIVE_SHOP_PROCESSES = new ConcurrentHashMap<>();
     
+    // Worker for computing checkout diffs off the server thread
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Webshoplink-Diff");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     @SubscribeEvent
     public static void registerCommands(RegisterCommandsEvent event) {
         LOGGER.info("Registering shop commands");
@@ -44,12 +56,12 @@ public class ShopCommands {
             Commands.literal("shop")
                 .requires(source -> source.hasPermission(0)) // Anyone can use
                 .then(Commands.argument("type", StringArgumentType.string())
-                    .executes(context -> executeShopCommand(context.getSource(),
-                        StringArgumentType.getString(context, "type"), "Trader"))
+                    .executes(context -> TickProfiler.timeCommand(() -> executeShopCommand(context.getSource(),
+                        StringArgumentType.getString(context, "type"), "Trader")))
                     .then(Commands.argument("label", StringArgumentType.greedyString())
-                        .executes(context -> executeShopCommand(context.getSource(),
+                        .executes(context -> TickProfiler.timeCommand(() -> executeShopCommand(context.getSource(),
                             StringArgumentType.getString(context, "type"),
-                            StringArgumentType.getString(context, "label")))
+                            StringArgumentType.getString(context, "label"))))
                     )
                 )
         );
@@ -59,8 +71,8 @@ public class ShopCommands {
             Commands.literal("shopFinish")
                 .requires(source -> source.hasPermission(0)) // Anyone can use
                 .then(Commands.argument("uuid", StringArgumentType.string())
-                    .executes(context -> executeShopFinishCommand(context.getSource(),
-                        StringArgumentType.getString(context, "uuid")))
+                    .executes(context -> TickProfiler.timeCommand(() -> executeShopFinishCommand(context.getSource(),
+                        StringArgumentType.getString(context, "uuid"))))
                 )
         );
         
@@ -69,10 +81,68 @@ public class ShopCommands {
             Commands.literal("confirmFinish")
                 .requires(source -> source.hasPermission(0)) // Anyone can use
                 .then(Commands.argument("uuid", StringArgumentType.string())
-                    .executes(context -> executeConfirmFinishCommand(context.getSource(),
-                        StringArgumentType.getString(context, "uuid")))
+                    .executes(context -> TickProfiler.timeCommand(() -> executeConfirmFinishCommand(context.getSource(),
+                        StringArgumentType.getString(context, "uuid"))))
                 )
         );
+        
+        // Register "shopstats" command for operators
+        event.getDispatcher().register(
+            Commands.literal("shopstats")
+                .requires(source -> source.hasPermission(2)) // Operators only
+                .executes(context -> executeShopStatsCommand(context.getSource()))
+                .then(Commands.literal("dump")
+                    .executes(context -> executeShopStatsDumpCommand(context.getSource())))
+        );
+    }
+
+    /**
+     * @return The number of shop processes that were started but not yet completed or cancelled
+     */
+    static int getActiveShopProcessCount() {
+        return ACTIVE_SHOP_PROCESSES.size();
+    }
+
+    /**
+     * @return The active shop process with the given id, or null if there is none
+     */
+    static ShopProcess getActiveShopProcess(UUID processId) {
+        return ACTIVE_SHOP_PROCESSES.get(processId);
+    }
+
+    /**
+     * Ends an open shop process that expired on the shop's side, so the player is not left with a dead link
+     */
+    static void expireShopProcess(ShopProcess shopProcess) {
+        if (shopProcess.transition(ShopState.OPEN, ShopState.EXPIRED) == null) {
+            return;
+        }
+        ACTIVE_SHOP_PROCESSES.remove(shopProcess.getProcessId(), shopProcess);
+        BackendRouter.release(shopProcess.getProcessId());
+        DebugLogger.log("Shop process " + shopProcess.getProcessId() + " expired", Config.DebugVerbosity.MINIMAL);
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        ServerPlayer player = server != null ? server.getPlayerList().getPlayer(shopProcess.getPlayerId()) : null;
+        if (player != null) {
+            player.sendSystemMessage(Component.literal("Your shopping session has expired. Please start a new one.")
+                    .withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
+        }
+    }
+
+    /**
+     * Checks out a shop process whose cart was finalized in the web shop, so the confirm prompt appears without /shopFinish
+     * @return false if the player of the process is not online
+     */
+    static boolean prefetchCheckout(ShopProcess shopProcess) {
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        ServerPlayer player = server != null ? server.getPlayerList().getPlayer(shopProcess.getPlayerId()) : null;
+        if (player == null) {
+            DebugLogger.log("Not prefetching checkout of process " + shopProcess.getProcessId() + ", player is offline", Config.DebugVerbosity.DEFAULT);
+            return false;
+        }
+        DebugLogger.log("Prefetching checkout of process " + shopProcess.getProcessId() + " for player " + player.getName().getString(), Config.DebugVerbosity.MINIMAL);
+        PlayerMailbox.submit(player, () -> ACTIVE_SHOP_PROCESSES.get(shopProcess.getProcessId()) == shopProcess
+                ? checkout(player, shopProcess, false) : CompletableFuture.completedFuture(null));
+        return true;
     }
 
     private static int executeShopCommand(CommandSourceStack source, String shopSlug, String shopLabel) {
@@ -81,6 +151,15 @@ public class ShopCommands {
             return 0;
         }
         
+        PlayerMailbox.submit(player, () -> startShop(player, shopSlug, shopLabel));
+        return 1;
+    }
+
+    /**
+     * Starts a shop process, cancelling the player's previous one
+     * @return A future that completes when the player got the shop link or an error
+     */
+    private static CompletableFuture<Void> startShop(ServerPlayer player, String shopSlug, String shopLabel) {
         // Limit the shop label length to prevent border underflow errors
         // Ensure label will fit within the border (max length 40 to leave room for padding and spaces)
         // Create a final copy of the potentially modified shopLabel for use in lambda
@@ -92,35 +171,56 @@ public class ShopCommands {
             finalShopLabel = shopLabel;
         }
         
+        // Record the whole session start in flight recordings
+        ShopEvents.SessionStartEvent startEvent = new ShopEvents.SessionStartEvent();
+        startEvent.begin();
+        startEvent.shopSlug = shopSlug;
+        
         // Log command execution
         DebugLogger.log("Player " + player.getName().getString() + " executed shop command with slug: " + shopSlug + ", label: " + finalShopLabel, Config.DebugVerbosity.MINIMAL);
         
         // Capture the player's current inventory for later verification
         InventorySnapshot inventorySnapshot = captureInventory(player);
         
-        // Serialize the inventory for API communication
+        // Serialize the inventory for API communication, limited to what this shop needs
+        InventoryFilter inventoryFilter = InventoryFilter.forShop(shopSlug);
         InventoryList inventories = new InventoryList();
-        inventories.setInventoryFromPlayer(player.getInventory());
-        inventories.setEchestFromPlayer(player.getEnderChestInventory());
+        if (inventoryFilter.includesInventory()) {
+            inventories.setInventoryFromPlayer(player.getInventory(), inventoryFilter);
+        }
+        if (inventoryFilter.includesEchest()) {
+            inventories.setEchestFromPlayer(player.getEnderChestInventory(), inventoryFilter);
+        }
         
         // Send debug to server console
         DebugLogger.log("Captured inventory for player " + player.getName().getString() + ": " + GSON.toJson(inventories, InventoryList.class), Config.DebugVerbosity.ALL);
         
-        // Check if we have an active shop process for this player
+        // Check if we have an active shop process for this player. Earlier operations of the player have completed,
+        // so a process started by a /shop just before this one is already in the map.
+        CompletableFuture<Void> previousCancelled = CompletableFuture.completedFuture(null);
         if (ACTIVE_SHOP_PROCESSES.values().stream().anyMatch(sp -> sp.getPlayerId().equals(player.getUUID()))) {
             DebugLogger.log("Player " + player.getName().getString() + " already has an active shop process. Cancelling previous process.", Config.DebugVerbosity.MINIMAL);
             
-            // Cancel the previous shop process
-            ACTIVE_SHOP_PROCESSES.values().stream()
+            // Cancel the previous shop process, in parallel with initiating the new one
+            previousCancelled = ACTIVE_SHOP_PROCESSES.values().stream()
                 .filter(sp -> sp.getPlayerId().equals(player.getUUID()))
                 .findFirst()
-                .ifPresent(shopProcess -> {
-                    ApiService.cancelShop(shopProcess.getProcessId(), player.getName().getString(), shopProcess.getTwoFactorCode())
+                .map(shopProcess -> {
+                    ShopEvents.SessionCancelEvent cancelEvent = new ShopEvents.SessionCancelEvent();
+                    cancelEvent.begin();
+                    return ApiService.cancelShop(shopProcess.getProcessId(), player.getName().getString(), shopProcess.getTwoFactorCode())
+                        .whenComplete((success, error) -> {
+                            cancelEvent.processId = shopProcess.getProcessId().toString();
+                            cancelEvent.shopSlug = shopProcess.getShopSlug();
+                            cancelEvent.success = error == null && Boolean.TRUE.equals(success);
+                            cancelEvent.commit();
+                        })
                         .thenAccept(success -> {
                             if (success) {
                                 DebugLogger.log("Cancelled previous shop process for player " + player.getName().getString(), Config.DebugVerbosity.MINIMAL);
                                 player.sendSystemMessage(Component.literal("Your previous shopping process has been cancelled, starting a new one.").withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
                                 // Remove the cancelled process from the active map
+                                shopProcess.finish(ShopState.CANCELLED);
                                 ACTIVE_SHOP_PROCESSES.remove(shopProcess.getProcessId());
                             } else {
                                 DebugLogger.logError("Failed to cancel previous shop process for player " + player.getName().getString(), null);
@@ -131,11 +231,17 @@ public class ShopCommands {
                             player.sendSystemMessage(Component.literal("Error cancelling your previous shopping process. Please try again later.").withStyle(Style.EMPTY.withColor(ChatFormatting.RED)));
                             return null;
                         });
-                });
+                })
+                .orElse(previousCancelled);
         }
 
-        // Send API request to initiate shop process
-        ApiService.initiateShop(player.getUUID(), player.getName().getString(), shopSlug, inventories)
+        // Send API request to initiate shop process. With a reserve endpoint only the session is requested,
+        // so the link is shown after a small round-trip and the inventory follows in the background.
+        boolean twoPhase = Config.shopReserveEndpoint != null && !Config.shopReserveEndpoint.isEmpty();
+        CompletableFuture<ShopResponse> sessionRequest = twoPhase
+                ? ApiService.reserveShop(player.getUUID(), player.getName().getString(), shopSlug)
+                : ApiService.initiateShop(player.getUUID(), player.getName().getString(), shopSlug, inventories);
+        CompletableFuture<Void> initiated = sessionRequest
             .thenAccept(shopResponse -> {
                 try {
                     // Check if there was an error in the response
@@ -161,13 +267,15 @@ public class ShopCommands {
                         return;
                     }
                     
-                    // Create a shop process and save the player's current inventory
-                    ShopProcess shopProcess = new ShopProcess(player.getUUID(), processId, inventorySnapshot, finalShopLabel);
+                    // Create a shop process with the response data and the player's current inventory,
+                    // it is complete before it becomes visible to other threads through the map
+                    ShopProcess shopProcess = new ShopProcess(player.getUUID(), processId, inventorySnapshot, shopSlug, finalShopLabel, inventoryFilter);
+                    shopProcess.open(shopResponse.getLink(), shopResponse.getTwoFactorCode());
                     ACTIVE_SHOP_PROCESSES.put(processId, shopProcess);
-                    
-                    // Store the response data in the shop process
-                    shopProcess.setWebLink(shopResponse.getLink());
-                    shopProcess.setTwoFactorCode(shopResponse.getTwoFactorCode());
+                    if (twoPhase) {
+                        shopProcess.setInventoryUpload(uploadInventory(player, shopProcess, inventories));
+                    }
+                    StatusWatcher.watch(shopProcess);
                     
                     // Create formatted header with the shop label
                     Component headerComponent = createShopBorder(shopProcess.getShopLabel(), true);
@@ -206,12 +314,18 @@ public class ShopCommands {
                     player.sendSystemMessage(finishComponent);
                     player.sendSystemMessage(footerComponent);
                     player.sendSystemMessage(spacerComponent);
+                    
+                    startEvent.processId = shopResponse.getUuid();
+                    startEvent.payloadBytes = shopResponse.getRequestBytes();
+                    startEvent.success = true;
                 } catch (Exception e) {
                     DebugLogger.logError("Error processing shop response", e);
                     
                     // Create a formatted error message
                     ErrorResponse errorResponse = new ErrorResponse("Error processing shop response: " + e.getMessage(), 0);
                     displayErrorMessage(player, errorResponse);
+                } finally {
+                    startEvent.commit();
                 }
             }).exceptionally(e -> {
                 DebugLogger.logError("Error connecting to shop API", e);
@@ -223,15 +337,49 @@ public class ShopCommands {
                 return null;
             });
         
-        return 1;
+        return CompletableFuture.allOf(previousCancelled, initiated);
     }
     
+    /**
+     * Uploads the inventory of a reserved shop process in the background.
+     * A session without inventory is useless, so it is cancelled if the upload fails.
+     */
+    private static CompletableFuture<Boolean> uploadInventory(ServerPlayer player, ShopProcess shopProcess, InventoryList inventories) {
+        CompletableFuture<Boolean> upload = ApiService.uploadInventory(shopProcess.getProcessId(), shopProcess.getShopSlug(),
+                shopProcess.getTwoFactorCode(), inventories);
+        upload.exceptionally(e -> {
+            DebugLogger.logError("Inventory upload failed for shop process " + shopProcess.getProcessId(), e);
+            if (shopProcess.finish(ShopState.CANCELLED)) {
+                ACTIVE_SHOP_PROCESSES.remove(shopProcess.getProcessId(), shopProcess);
+                ApiService.cancelShop(shopProcess.getProcessId(), player.getName().getString(), shopProcess.getTwoFactorCode())
+                    .exceptionally(cancelError -> {
+                        DebugLogger.logError("Error cancelling shop process after failed inventory upload", cancelError);
+                        return false;
+                    });
+                ErrorResponse errorResponse = e.getCause() instanceof ErrorResponse error ? error
+                        : new ErrorResponse("Failed to upload your inventory to the shop server", 0);
+                displayErrorMessage(player, errorResponse);
+            }
+            return false;
+        });
+        return upload;
+    }
+
     private static int executeShopFinishCommand(CommandSourceStack source, String uuidString) {
         if (!(source.getEntity() instanceof ServerPlayer player)) {
             source.sendFailure(Component.literal("This command can only be executed by a player"));
             return 0;
         }
         
+        PlayerMailbox.submit(player, () -> shopFinish(player, uuidString));
+        return 1;
+    }
+
+    /**
+     * Checks out the player's shop process with the given id
+     * @return A future that completes when the player got the confirm prompt or an error
+     */
+    private static CompletableFuture<Void> shopFinish(ServerPlayer player, String uuidString) {
         try {
             // The uuidString is now the actual process UUID from the API
             UUID processId = UUID.fromString(uuidString);
@@ -244,141 +392,149 @@ public class ShopCommands {
             if (shopProcess == null || !shopProcess.getPlayerId().equals(player.getUUID())) {
                 DebugLogger.log("No active shopping process found for player " + player.getName().getString() + " with ID: " + processId);
                 player.sendSystemMessage(Component.literal("No active shopping process found for that ID."));
-                return 0;
+                return CompletableFuture.completedFuture(null);
+            }
+            if (shopProcess.getState().phase() == ShopState.APPLYING) {
+                player.sendSystemMessage(Component.literal("This purchase is already being applied.").withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
+                return CompletableFuture.completedFuture(null);
             }
             
-            // Make the API call to finish the shop process
-            ApiService.finishShop(processId, player.getName().getString(), shopProcess.getTwoFactorCode())
-                .thenAccept(newInventoryList -> {
-                    try {
-                        // Get the inventory data from the response
-                        InventoryData inventoryData = newInventoryList.getInventoryData();
-                        ContainerData echestData = newInventoryList.getEnderChestData();
-                        
-                        if (inventoryData == null) {
-                            DebugLogger.logError("Failed to parse inventory data from response", null);
-                            
-                            // Use our utility method to display an error
-                            ErrorResponse errorResponse = new ErrorResponse("Failed to parse inventory data from response", 0);
-                            displayErrorMessage(player, errorResponse);
-                            return;
-                        }
-                        
-                        // Store the new inventory in the shop process
-                        shopProcess.setNewInventory(inventoryData);
-                        shopProcess.setNewEchest(echestData);
-                        DebugLogger.log("Successfully stored new inventory for player " + player.getName().getString() + ", process: " + processId);
-
-                        // Create the confirmation message with a clickable button
-                        Component spacerComponent = Component.literal("");
-                        Component headerComponent = createShopBorder("Confirm Checkout", true);
-                        Component footerComponent = createShopBorder("", false);
-
-                        /* Disable diff display @2025.06.04 - 10:34AM
-
-                        // Generate and show a diff to the player
-                        InventoryDiff diff = generateInventoryDiff(shopProcess.getOriginalInventory(), inventoryData, echestData);
-                        
-                        Component diffIntroComponent = Component.literal("Your shopping cart contains the following changes:\n")
-                                .withStyle(Style.EMPTY.withColor(ChatFormatting.WHITE));
-
-                        // Display removed items in red
-                        if (!diff.getRemoved().isEmpty()) {
-                            Component removedHeaderComponent = Component.literal("\nRemoved items:")
-                                    .withStyle(Style.EMPTY.withColor(ChatFormatting.RED));
-                            player.sendSystemMessage(spacerComponent);
-                            player.sendSystemMessage(headerComponent);
-                            player.sendSystemMessage(diffIntroComponent);
-                            player.sendSystemMessage(removedHeaderComponent);
-                            
-                            for (InventoryChange change : diff.getRemoved()) {
-                                Component itemComponent = Component.literal("- " + change.getCount() + "x " + change.getFormattedName())
-                                        .withStyle(Style.EMPTY.withColor(ChatFormatting.RED));
-                                player.sendSystemMessage(itemComponent);
-                            }
-                        }
-                        
-                        // Display added items in green
-                        if (!diff.getAdded().isEmpty()) {
-                            Component addedHeaderComponent = Component.literal("\nAdded items:")
-                                    .withStyle(Style.EMPTY.withColor(ChatFormatting.GREEN));
-                            
-                            if (diff.getRemoved().isEmpty()) {
-                                // If there were no removed items, we need to send the header first
-                                player.sendSystemMessage(spacerComponent);
-                                player.sendSystemMessage(headerComponent);
-                                player.sendSystemMessage(diffIntroComponent);
-                            }
-                            
-                            player.sendSystemMessage(addedHeaderComponent);
-                              for (InventoryChange change : diff.getAdded()) {
-                                Component itemComponent = Component.literal("+ " + change.getCount() + "x " + change.getFormattedName())
-                                        .withStyle(Style.EMPTY.withColor(ChatFormatting.GREEN));
-                                player.sendSystemMessage(itemComponent);
-                            }
-                        }
-                        
-                        // If there are no changes at all
-                        if (diff.isEmpty()) {
-                            player.sendSystemMessage(spacerComponent);
-                            player.sendSystemMessage(headerComponent);
-                            player.sendSystemMessage(diffIntroComponent);
-                            player.sendSystemMessage(Component.literal("No changes to your inventory.")
-                                    .withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
-                        }
-
-                        */
-                        
-                        Component confirmComponent = Component.literal(">>>> ")
-                                .withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY))
-                                .append(Component.literal("Confirm and Apply Changes")
-                                        .withStyle(Style.EMPTY
-                                                .withColor(ChatFormatting.GREEN)
-                                                .withUnderlined(true)
-                                                .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/confirmFinish " + processId))
-                                                .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Component.literal("Click to confirm purchase")))))
-                                .append(Component.literal(" <<<<").withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
-
-                        player.sendSystemMessage(headerComponent); // Remove this if the diff is enabled again
-                        player.sendSystemMessage(confirmComponent);                        player.sendSystemMessage(footerComponent);
-                        player.sendSystemMessage(spacerComponent);                    } catch (Exception e) {
-                        DebugLogger.logError("Error processing shop finish response", e);
+            return checkout(player, shopProcess, true);
+        } catch (IllegalArgumentException e) {
+            DebugLogger.logError("Invalid UUID format in shopFinish command: " + uuidString, e);
+            player.sendSystemMessage(Component.literal("Invalid UUID format. Please use the UUID provided in the shop link."));
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+    
+    /**
+     * Checks out a shop process and shows the player the changes to confirm.
+     * The diff is computed on the diff worker, so this can be called from any thread.
+     * @param refresh true if the player asked for the checkout, which fetches the cart again unless a checkout is in flight.
+     *                A prefetch reuses any checkout that didn't fail.
+     * @return A future that completes when the player got the confirm prompt or an error
+     */
+    private static CompletableFuture<Void> checkout(ServerPlayer player, ShopProcess shopProcess, boolean refresh) {
+        UUID processId = shopProcess.getProcessId();
+        StatusWatcher.unwatch(processId);
+        ShopEvents.CheckoutEvent checkoutEvent = new ShopEvents.CheckoutEvent();
+        checkoutEvent.begin();
+        checkoutEvent.processId = processId.toString();
+        checkoutEvent.shopSlug = shopProcess.getShopSlug();
+        
+        // Make the API call to finish the shop process, after the inventory upload of a reserved session.
+        // A checkout in flight is shared, so a prefetch racing the command sends one request. A finished checkout
+        // is fetched again when the player asks, since the cart may have changed in the web shop since then.
+        CompletableFuture<InventoryList> checkoutRequest;
+        synchronized (shopProcess) {
+            checkoutRequest = shopProcess.getCheckout();
+            if (refresh && checkoutRequest != null && checkoutRequest.isDone() && !checkoutRequest.isCompletedExceptionally()) {
+                IdempotencyCache.invalidate(ApiService.checkoutKey(processId, shopProcess.getCheckoutRound()));
+                shopProcess.refreshCheckout();
+                checkoutRequest = null;
+            }
+            if (checkoutRequest == null || checkoutRequest.isCompletedExceptionally()) {
+                int round = shopProcess.getCheckoutRound();
+                checkoutRequest = shopProcess.getInventoryUpload()
+                    .thenCompose(uploaded -> ApiService.finishShop(processId, player.getName().getString(), shopProcess.getTwoFactorCode(), round));
+                shopProcess.setCheckout(checkoutRequest);
+            }
+        }
+        return checkoutRequest
+            .thenAcceptAsync(newInventoryList -> {
+                try {
+                    checkoutEvent.payloadBytes = newInventoryList.getResponseBytes();
+                    
+                    // Get the inventory data from the response
+                    InventoryData inventoryData = newInventoryList.getInventoryData();
+                    ContainerData echestData = newInventoryList.getEnderChestData();
+                    
+                    if (inventoryData == null) {
+                        DebugLogger.logError("Failed to parse inventory data from response", null);
                         
-                        // Create an ErrorResponse for the exception
-                        ErrorResponse errorResponse = new ErrorResponse("Error processing shop checkout: " + e.getMessage(), 0);
+                        // Use our utility method to display an error
+                        ErrorResponse errorResponse = new ErrorResponse("Failed to parse inventory data from response", 0);
                         displayErrorMessage(player, errorResponse);
+                        return;
                     }
-                }).exceptionally(e -> {
-                    Throwable cause = e.getCause();
-                    DebugLogger.logError("Error during shop finish", cause);
                     
-                    // Different message depending on the error type
-                    if (cause instanceof ErrorResponse) {
-                        ErrorResponse error = (ErrorResponse) cause;
-                        displayErrorMessage(player, error);
-                    } else {
-                        // Generic connection error
-                        displayConnectionError(player, "Failed to connect to shop server.");
+                    // The diff is computed here on the diff worker, never on the server thread
+                    InventoryDiff diff = generateInventoryDiff(shopProcess.getOriginalInventory(), inventoryData, echestData, shopProcess.getInventoryFilter());
+                    
+                    // Store the new inventory in the shop process, unless it is already being applied or finished
+                    if (!shopProcess.checkedOut(inventoryData, echestData)) {
+                        DebugLogger.log("Not storing checkout of process " + processId + " in state " + shopProcess.getState().phase(), Config.DebugVerbosity.DEFAULT);
+                        return;
                     }
+                    DebugLogger.log("Successfully stored new inventory for player " + player.getName().getString() + ", process: " + processId);
+
+                    // Create the confirmation message with a clickable button
+                    Component spacerComponent = Component.literal("");
+                    Component headerComponent = createShopBorder("Confirm Checkout", true);
+                    Component footerComponent = createShopBorder("", false);
+                    Component diffComponent = createInventoryDiffComponent(diff);
                     
-                    return null;
-                });
-            
-        } catch (IllegalArgumentException e) {
-            DebugLogger.logError("Invalid UUID format in shopFinish command: " + uuidString, e);
-            player.sendSystemMessage(Component.literal("Invalid UUID format. Please use the UUID provided in the shop link."));
-            return 0;
-        }
-        
-        return 1;
+                    Component confirmComponent = Component.literal(">>>> ")
+                            .withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY))
+                            .append(Component.literal("Confirm and Apply Changes")
+                                    .withStyle(Style.EMPTY
+                                            .withColor(ChatFormatting.GREEN)
+                                            .withUnderlined(true)
+                                            .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/confirmFinish " + processId))
+                                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Component.literal("Click to confirm purchase")))))
+                            .append(Component.literal(" <<<<").withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
+
+                    player.sendSystemMessage(spacerComponent);
+                    player.sendSystemMessage(headerComponent);
+                    player.sendSystemMessage(diffComponent);
+                    player.sendSystemMessage(confirmComponent);
+                    player.sendSystemMessage(footerComponent);
+                    player.sendSystemMessage(spacerComponent);
+                    checkoutEvent.success = true;
+                } catch (Exception e) {
+                    DebugLogger.logError("Error processing shop finish response", e);
+                    
+                    // Create an ErrorResponse for the exception
+                    ErrorResponse errorResponse = new ErrorResponse("Error processing shop checkout: " + e.getMessage(), 0);
+                    displayErrorMessage(player, errorResponse);
+                } finally {
+                    checkoutEvent.commit();
+                }
+            }, DIFF_EXECUTOR).exceptionally(e -> {
+                Throwable cause = e.getCause();
+                DebugLogger.logError("Error during shop finish", cause);
+                checkoutEvent.commit();
+                
+                // Different message depending on the error type
+                if (cause instanceof ErrorResponse) {
+                    ErrorResponse error = (ErrorResponse) cause;
+                    displayErrorMessage(player, error);
+                } else {
+                    // Generic connection error
+                    displayConnectionError(player, "Failed to connect to shop server.");
+                }
+                
+                return null;
+            });
     }
-    
+
     private static int executeConfirmFinishCommand(CommandSourceStack source, String uuidString) {
         if (!(source.getEntity() instanceof ServerPlayer player)) {
             source.sendFailure(Component.literal("This command can only be executed by a player"));
             return 0;
         }
         
+        PlayerMailbox.submit(player, () -> confirmFinish(player, uuidString));
+        return 1;
+    }
+
+    /**
+     * Applies the checked out purchase of the player's shop process with the given id
+     * @return A future that completes when the purchase was applied or failed
+     */
+    private static CompletableFuture<Void> confirmFinish(ServerPlayer player, String uuidString) {
+        ShopEvents.ApplyEvent applyEvent = new ShopEvents.ApplyEvent();
+        applyEvent.begin();
         try {
             UUID processId = UUID.fromString(uuidString);
             ShopProcess shopProcess = ACTIVE_SHOP_PROCESSES.get(processId);
@@ -389,47 +545,69 @@ public class ShopCommands {
             if (shopProcess == null || !shopProcess.getPlayerId().equals(player.getUUID())) {
                 DebugLogger.log("No active shopping process found for player " + player.getName().getString() + " with ID: " + processId);
                 player.sendSystemMessage(Component.literal("No active shopping process found with that ID."));
-                return 0;
+                return CompletableFuture.completedFuture(null);
             }
+            applyEvent.processId = processId.toString();
+            applyEvent.shopSlug = shopProcess.getShopSlug();
 
-            // Capture the current inventory state for comparison
-            InventorySnapshot currentInventory = captureInventory(player);
-            
-            // Compare the current inventory with the original inventory
-            if (!inventoriesMatch(shopProcess.getOriginalInventory(), currentInventory)) {
-                DebugLogger.log("Inventory changed for player " + player.getName().getString() + ", purchase cancelled", Config.DebugVerbosity.MINIMAL);
-                
-                // Get detailed information about what changed
-                String differences = InventoryManager.getInventoryDifferences(shopProcess.getOriginalInventory(), currentInventory);
-                
-                // Provide more detailed error message about inventory changes
-                player.sendSystemMessage(Component.literal("Your inventory has changed since starting the shop process. Purchase cancelled.")
-                        .withStyle(Style.EMPTY.withColor(ChatFormatting.RED)));
-                
-                if (differences != null) {
-                    player.sendSystemMessage(Component.literal("Changes detected: " + differences)
-                            .withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
-                }
-                
-                // Log detailed information about what changed for debugging
-                DebugLogger.log("Inventory differences: " + (differences != null ? differences : "Unknown"), Config.DebugVerbosity.MINIMAL);
-                DebugLogger.log("Original inventory: " + GSON.toJson(shopProcess.getOriginalInventory()), Config.DebugVerbosity.ALL);
-                DebugLogger.log("Current inventory: " + GSON.toJson(currentInventory), Config.DebugVerbosity.ALL);
-                
+            // Only one confirmation can move the process out of CHECKED_OUT, repeated clicks are rejected without an API call
+            ShopProcess.State state = shopProcess.transition(ShopState.CHECKED_OUT, ShopState.APPLYING);
+            if (state == null) {
+                String message = shopProcess.getState().phase() == ShopState.APPLYING
+                        ? "This purchase is already being applied."
+                        : "Please finish the trade before confirming it.";
+                player.sendSystemMessage(Component.literal(message).withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // Merge the purchase with any changes the player made in the meantime
+            InventoryMerge merge = mergePurchase(player, shopProcess, state);
+            if (merge == null) {
+                shopProcess.finish(ShopState.CANCELLED);
                 ACTIVE_SHOP_PROCESSES.remove(processId);
-                return 0;
+                applyEvent.commit();
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            // Create all purchased items before notifying the API, so a broken item can't be marked as applied
+            try {
+                InventoryBatch.stage(player, state.newInventory(), state.newEchest(), merge);
+            } catch (ErrorResponse e) {
+                // Nothing was applied, so the player may confirm again
+                shopProcess.transition(ShopState.APPLYING, ShopState.CHECKED_OUT);
+                throw e;
             }
             
             // First notify the API that the changes will be applied and wait for confirmation
-            ApiService.notifyChangesApplied(processId, shopProcess.getTwoFactorCode())
-                .thenAccept(success -> {
+            return ApiService.notifyChangesApplied(processId, state.twoFactorCode())
+                .thenAcceptAsync(success -> {
                     // The API has confirmed the transaction and notifyChangesApplied now only returns true
                     // (errors are thrown as exceptions and handled in the exceptionally block)
                     
-                    // Apply the inventory changes 
-                    applyNewInventory(player, shopProcess.getNewInventory());
-                    applyNewEchest(player, shopProcess.getNewEchest());
-                    DebugLogger.log("Applied inventory changes to player " + player.getName().getString(), Config.DebugVerbosity.MINIMAL);
+                    // The player may have moved items while the API answered, so merge and stage again right before the commit
+                    InventoryMerge currentMerge = mergePurchase(player, shopProcess, state);
+                    boolean applied = false;
+                    if (currentMerge != null) {
+                        try {
+                            InventoryBatch batch = InventoryBatch.stage(player, state.newInventory(), state.newEchest(), currentMerge);
+                            applyEvent.changedSlots = batch.getChangedSlots();
+                            applied = batch.commit(player);
+                        } catch (ErrorResponse e) {
+                            DebugLogger.logError("Failed to stage inventory changes for player " + player.getName().getString(), e);
+                        }
+                        if (!applied) {
+                            ErrorResponse errorResponse = new ErrorResponse("Failed to apply the purchased items to your inventory", 0);
+                            displayErrorMessage(player, errorResponse);
+                        }
+                    }
+                    applyEvent.success = applied;
+                    applyEvent.commit();
+                    if (!applied) {
+                        shopProcess.finish(ShopState.CANCELLED);
+                        ACTIVE_SHOP_PROCESSES.remove(processId);
+                        reportFailedApply(player, processId, state.twoFactorCode());
+                        return;
+                    }
                     DebugLogger.log("Applied inventory changes from session " + processId + " to player " + player.getName().getString());
                     // Display success message using utility method
                     displaySuccessMessage(player, shopProcess.getShopLabel(), "Purchase completed successfully!");
@@ -438,10 +616,15 @@ public class ShopCommands {
                     DebugLogger.log("Purchase completed successfully for player " + player.getName().getString() + ", process: " + processId, Config.DebugVerbosity.MINIMAL);
                     
                     // Remove the completed shop process
+                    shopProcess.transition(ShopState.APPLYING, ShopState.APPLIED);
                     ACTIVE_SHOP_PROCESSES.remove(processId);
-                }).exceptionally(e -> {
+                }, TickProfiler.timed(player.server)).exceptionally(e -> {
                     Throwable cause = e.getCause();
                     DebugLogger.logError("Error during shop purchase confirmation", cause);
+                    applyEvent.commit();
+                    
+                    // The API did not confirm, so nothing was applied and the player may confirm again
+                    shopProcess.transition(ShopState.APPLYING, ShopState.CHECKED_OUT);
                     
                     // Different message depending on the error type
                     if (cause instanceof ErrorResponse) {
@@ -454,12 +637,132 @@ public class ShopCommands {
                     
                     return null;
                 });
+        } catch (ErrorResponse e) {
+            DebugLogger.logError("Failed to stage inventory changes for player " + player.getName().getString(), e);
+            applyEvent.commit();
+            displayErrorMessage(player, e);
+            return CompletableFuture.completedFuture(null);
         } catch (IllegalArgumentException e) {
             DebugLogger.logError("Invalid UUID format in confirmFinish command: " + uuidString, e);
             player.sendSystemMessage(Component.literal("Invalid UUID format. Please use the UUID provided in the shop link."));
-            return 0;
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+    
+    /**
+     * Compares the player's current inventory with the original one, and merges the purchase with any
+     * changes the player made in the meantime. Slots hidden by the shop filter are never touched.
+     * Tells the player if the purchase has to be cancelled. Must be called on the server thread.
+     * @return The merge, or null if the player changed slots used by the purchase
+     */
+    private static InventoryMerge mergePurchase(ServerPlayer player, ShopProcess shopProcess, ShopProcess.State state) {
+        // Capture the current inventory state for comparison
+        InventorySnapshot currentInventory = captureInventory(player);
+        
+        InventoryMerge merge = mergeInventories(shopProcess.getOriginalInventory(), currentInventory,
+                state.newInventory(), state.newEchest(), shopProcess.getInventoryFilter());
+        if (inventoriesMatch(shopProcess.getOriginalInventory(), currentInventory)) {
+            return merge;
+        }
+        if (merge.hasConflicts()) {
+            DebugLogger.log("Inventory changed for player " + player.getName().getString() + " in slots used by the purchase, purchase cancelled", Config.DebugVerbosity.MINIMAL);
+            
+            String differences = String.join(" ", merge.getConflicts());
+            
+            // Provide more detailed error message about inventory changes
+            player.sendSystemMessage(Component.literal("Your inventory has changed in slots used by this purchase. Purchase cancelled.")
+                    .withStyle(Style.EMPTY.withColor(ChatFormatting.RED)));
+            player.sendSystemMessage(Component.literal("Changes detected: " + differences)
+                    .withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)));
+            
+            // Log detailed information about what changed for debugging
+            DebugLogger.log("Inventory conflicts: " + differences, Config.DebugVerbosity.MINIMAL);
+            DebugLogger.log("Original inventory: " + GSON.toJson(shopProcess.getOriginalInventory()), Config.DebugVerbosity.ALL);
+            DebugLogger.log("Current inventory: " + GSON.toJson(currentInventory), Config.DebugVerbosity.ALL);
+            return null;
+        }
+        
+        DebugLogger.log("Inventory changed for player " + player.getName().getString() + " outside the purchased slots, merging changes", Config.DebugVerbosity.MINIMAL);
+        DebugLogger.log("Inventory differences: " + InventoryManager.getInventoryDifferences(shopProcess.getOriginalInventory(), currentInventory), Config.DebugVerbosity.DEFAULT);
+        return merge;
+    }
+    
+    /**
+     * Reports a purchase the API acknowledged as applied but that could not be applied, by cancelling its session
+     */
+    private static void reportFailedApply(ServerPlayer player, UUID processId, String twoFactorCode) {
+        String playerName = player.getName().getString();
+        ShopMetrics.increment("webshoplink_apply_failed_after_ack_total");
+        DebugLogger.logError("Purchase " + processId + " of player " + playerName + " was acknowledged by the shop API but could not be applied, cancelling it", null);
+        ApiService.cancelShop(processId, playerName, twoFactorCode).whenComplete((cancelled, error) -> {
+            if (error != null) {
+                DebugLogger.logError("Failed to cancel unapplied purchase " + processId + " of player " + playerName, error);
+            }
+        });
+    }
+
+    private static int executeShopStatsCommand(CommandSourceStack source) {
+        source.sendSuccess(() -> createShopBorder("Shop Stats", true), false);
+        source.sendSuccess(() -> Component.literal("phase: count | p50 / p99 / p999 / max (ms)")
+                .withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)), false);
+        
+        for (ShopMetrics.Phase phase : ShopMetrics.Phase.values()) {
+            ShopMetrics.LatencyHistogram histogram = ShopMetrics.getHistogram(phase);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            String line = String.format("%s: %d | %.2f / %.2f / %.2f / %.2f",
+                    phase.getLabel(),
+                    histogram.getCount(),
+                    histogram.getValueAtPercentile(0.5) / 1_000_000.0,
+                    histogram.getValueAtPercentile(0.99) / 1_000_000.0,
+                    histogram.getValueAtPercentile(0.999) / 1_000_000.0,
+                    histogram.getMaxNanos() / 1_000_000.0);
+            source.sendSuccess(() -> Component.literal(line).withStyle(Style.EMPTY.withColor(ChatFormatting.WHITE)), false);
+        }
+        
+        // Result of the last health probe of the shop API
+        if (HealthMonitor.getLastProbeMillis() >= 0) {
+            boolean healthy = HealthMonitor.isHealthy();
+            String healthLine = String.format("shop api: %s (last probe %d ms)", healthy ? "healthy" : "unreachable", HealthMonitor.getLastProbeMillis());
+            source.sendSuccess(() -> Component.literal(healthLine)
+                    .withStyle(Style.EMPTY.withColor(healthy ? ChatFormatting.GRAY : ChatFormatting.RED)), false);
         }
         
+        // Load and ejection of each backend, if there are several
+        if (BackendRouter.getBackends().size() > 1) {
+            for (BackendRouter.Backend backend : BackendRouter.getBackends()) {
+                String backendLine = String.format("backend %s: %d outstanding%s", backend.getBaseUrl(), backend.getOutstanding(),
+                        backend.isEjected() ? ", ejected" : "");
+                source.sendSuccess(() -> Component.literal(backendLine)
+                        .withStyle(Style.EMPTY.withColor(backend.isEjected() ? ChatFormatting.RED : ChatFormatting.GRAY)), false);
+            }
+        }
+        
+        // Server thread time per tick over the rolling window
+        String tickLine = String.format("tick avg (last %d ticks): %s", TickProfiler.getWindowTicks(),
+                TickProfiler.formatShare(TickProfiler.getAverageNanos()));
+        source.sendSuccess(() -> Component.literal(tickLine).withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)), false);
+        for (TickProfiler.TickSample sample : TickProfiler.getWorstTicks()) {
+            String sampleLine = String.format("worst tick #%d: %s (%s)", sample.tick(),
+                    TickProfiler.formatShare(sample.totalNanos()), TickProfiler.formatBreakdown(sample.phaseNanos()));
+            source.sendSuccess(() -> Component.literal(sampleLine).withStyle(Style.EMPTY.withColor(ChatFormatting.YELLOW)), false);
+        }
+        
+        source.sendSuccess(() -> createShopBorder("", false), false);
         return 1;
     }
+    
+    private static int executeShopStatsDumpCommand(CommandSourceStack source) {
+        try {
+            ShopMetrics.dumpToFile(java.nio.file.Path.of(Config.metricsFile));
+            source.sendSuccess(() -> Component.literal("Metrics written to " + Config.metricsFile)
+                    .withStyle(Style.EMPTY.withColor(ChatFormatting.GREEN)), false);
+            return 1;
+        } catch (java.io.IOException e) {
+            DebugLogger.logError("Failed to write metrics file " + Config.metricsFile, e);
+            source.sendFailure(Component.literal("Failed to write metrics file: " + e.getMessage()));
+            return 0;
+        }
+    }
 }
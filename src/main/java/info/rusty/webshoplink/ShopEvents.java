@@ -0,0 +1,146 @@
+package info.rusty.webshoplink;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for shop sessions and API calls.
+ * Events cost next to nothing unless a recording with them enabled is running,
+ * so they can be committed unconditionally. Values that are expensive to compute
+ * should only be set after checking {@link Event#shouldCommit()}.
+ */
+public class ShopEvents {
+    private static final String CATEGORY = "Webshoplink";
+
+    @Name("info.rusty.webshoplink.SessionStart")
+    @Label("Shop Session Start")
+    @Description("From the /shop command until the shop link was sent to the player")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class SessionStartEvent extends Event {
+        @Label("Process Id")
+        public String processId;
+
+        @Label("Shop Slug")
+        public String shopSlug;
+
+        @Label("Payload Size")
+        @DataAmount
+        public long payloadBytes;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("info.rusty.webshoplink.SessionCancel")
+    @Label("Shop Session Cancel")
+    @Description("Cancellation of a previous shop session")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class SessionCancelEvent extends Event {
+        @Label("Process Id")
+        public String processId;
+
+        @Label("Shop Slug")
+        public String shopSlug;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("info.rusty.webshoplink.Checkout")
+    @Label("Shop Checkout")
+    @Description("From the /shopFinish command until the confirm prompt was sent to the player")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class CheckoutEvent extends Event {
+        @Label("Process Id")
+        public String processId;
+
+        @Label("Shop Slug")
+        public String shopSlug;
+
+        @Label("Payload Size")
+        @DataAmount
+        public long payloadBytes;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("info.rusty.webshoplink.Apply")
+    @Label("Shop Apply")
+    @Description("From the /confirmFinish command until the purchase was applied to the player")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class ApplyEvent extends Event {
+        @Label("Process Id")
+        public String processId;
+
+        @Label("Shop Slug")
+        public String shopSlug;
+
+        @Label("Changed Slots")
+        public int changedSlots;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("info.rusty.webshoplink.HttpExchange")
+    @Label("Shop API Exchange")
+    @Description("A single HTTP request to the shop API")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class HttpExchangeEvent extends Event {
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("Process Id")
+        public String processId;
+
+        @Label("Shop Slug")
+        public String shopSlug;
+
+        @Label("Status Code")
+        @Description("HTTP status code, 0 if no response was received")
+        public int statusCode;
+
+        @Label("Request Size")
+        @DataAmount
+        public long requestBytes;
+
+        @Label("Response Size")
+        @DataAmount
+        public long responseBytes;
+    }
+
+    /**
+     * Counts the UTF-8 encoded length of a string without encoding it
+     */
+    public static long utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,291 @@
+package info.rusty.webshoplink;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects latency histograms and counters for every phase of the shop lifecycle.
+ * Recording is lock-free and allocation-free, so it is cheap enough to leave enabled on busy servers.
+ */
+public class ShopMetrics {
+    /**
+     * The measured phases of a shop session
+     */
+    public enum Phase {
+        COMMAND("command"),                 // Executing a shop command on the server thread
+        CAPTURE("capture"),                 // Taking the inventory snapshot
+        SERIALIZE("serialize"),             // Converting the inventory to API data
+        JSON("json"),                       // Building the initiate request body
+        COMPRESS("compress"),               // Gzip compressing request bodies
+        API_INITIATE("api_initiate"),       // Network time of the initiate request
+        API_INITIATE_BATCH("api_initiate_batch"), // Network time of a batched initiate request
+        API_RESERVE("api_reserve"),         // Network time of the reserve request
+        API_UPLOAD("api_upload"),           // Network time of the inventory upload after a reservation
+        API_CANCEL("api_cancel"),           // Network time of the cancel request
+        API_CANCEL_BATCH("api_cancel_batch"), // Network time of a batched cancel request
+        API_CHECKOUT("api_checkout"),       // Network time of the checkout request
+        API_APPLIED("api_applied"),         // Network time of the setApplied request
+        API_APPLIED_BATCH("api_applied_batch"), // Network time of a batched setApplied request
+        API_STATUS("api_status"),           // Network time of a status poll, including long-poll waits
+        API_HEALTH("api_health"),           // Network time of a health probe
+        DECOMPRESS("decompress"),           // Decompressing gzip response bodies
+        PARSE("parse"),                     // Parsing API responses
+        MATCH("match"),                     // Checking the inventory against the snapshot
+        DIFF("diff"),                       // Computing the checkout diff
+        STAGE("stage"),                     // Creating the purchased items before applying
+        APPLY("apply");                     // Writing the purchase to the player's containers
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Map<Phase, LatencyHistogram> HISTOGRAMS = new EnumMap<>(Phase.class);
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumpExecutor;
+
+    static {
+        for (Phase phase : Phase.values()) {
+            HISTOGRAMS.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start timestamp
+     * @param phase The phase being measured
+     * @param startNanos The value of {@link System#nanoTime()} when the phase started
+     */
+    public static void recordSince(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a duration for a phase
+     * @param phase The phase being measured
+     * @param nanos The duration in nanoseconds
+     */
+    public static void record(Phase phase, long nanos) {
+        HISTOGRAMS.get(phase).record(nanos);
+        TickProfiler.record(phase, nanos);
+    }
+
+    /**
+     * Counts an HTTP response from the shop API
+     * @param endpoint The endpoint name, e.g. "initiate"
+     * @param statusCode The HTTP status code
+     */
+    public static void countResponse(String endpoint, int statusCode) {
+        increment("webshoplink_api_responses_total{endpoint=\"" + endpoint + "\",status=\"" + statusCode + "\"}");
+    }
+
+    /**
+     * Counts a failed request to the shop API that did not produce a response
+     * @param endpoint The endpoint name, e.g. "initiate"
+     */
+    public static void countError(String endpoint) {
+        increment("webshoplink_api_errors_total{endpoint=\"" + endpoint + "\"}");
+    }
+
+    /**
+     * Increments a counter
+     * @param name The counter name including its labels, in OpenMetrics notation
+     */
+    public static void increment(String name) {
+        COUNTERS.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Adds to a counter
+     * @param name The counter name including its labels, in OpenMetrics notation
+     */
+    public static void add(String name, long amount) {
+        COUNTERS.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    public static LatencyHistogram getHistogram(Phase phase) {
+        return HISTOGRAMS.get(phase);
+    }
+
+    /**
+     * Writes all metrics in the OpenMetrics text format
+     */
+    public static void writeOpenMetrics(Writer writer) throws IOException {
+        writer.write("# TYPE webshoplink_phase_seconds summary\n");
+        writer.write("# HELP webshoplink_phase_seconds Time spent in each phase of the shop lifecycle.\n");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = HISTOGRAMS.get(phase);
+            String labels = "phase=\"" + phase.getLabel() + "\"";
+            for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+                writer.write("webshoplink_phase_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+                        + toSeconds(histogram.getValueAtPercentile(quantile)) + "\n");
+            }
+            writer.write("webshoplink_phase_seconds_sum{" + labels + "} " + toSeconds(histogram.getTotalNanos()) + "\n");
+            writer.write("webshoplink_phase_seconds_count{" + labels + "} " + histogram.getCount() + "\n");
+        }
+
+        String lastFamily = null;
+        for (Map.Entry<String, LongAdder> counter : new java.util.TreeMap<>(COUNTERS).entrySet()) {
+            String name = counter.getKey();
+            int labelStart = name.indexOf('{');
+            String sample = labelStart >= 0 ? name.substring(0, labelStart) : name;
+            String family = sample.endsWith("_total") ? sample.substring(0, sample.length() - "_total".length()) : sample;
+            if (!family.equals(lastFamily)) {
+                writer.write("# TYPE " + family + " counter\n");
+                lastFamily = family;
+            }
+            writer.write(name + " " + counter.getValue().sum() + "\n");
+        }
+        writer.write("# EOF\n");
+    }
+
+    /**
+     * Writes all metrics to a file, replacing it atomically so a scraper never reads a partial file
+     * @param file The file to write
+     */
+    public static void dumpToFile(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writeOpenMetrics(writer);
+        }
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts writing the metrics file periodically, if enabled in the config
+     */
+    public static synchronized void startFileDump() {
+        stopFileDump();
+        if (Config.metricsDumpInterval <= 0) {
+            return;
+        }
+        dumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumpExecutor.scheduleAtFixedRate(() -> {
+            try {
+                dumpToFile(Path.of(Config.metricsFile));
+            } catch (IOException e) {
+                DebugLogger.logError("Failed to write metrics file " + Config.metricsFile, e);
+            }
+        }, Config.metricsDumpInterval, Config.metricsDumpInterval, TimeUnit.SECONDS);
+        DebugLogger.log("Writing metrics to " + Config.metricsFile + " every " + Config.metricsDumpInterval + " seconds", Config.DebugVerbosity.MINIMAL);
+    }
+
+    /**
+     * Stops the periodic metrics file dump
+     */
+    public static synchronized void stopFileDump() {
+        if (dumpExecutor != null) {
+            dumpExecutor.shutdownNow();
+            dumpExecutor = null;
+        }
+    }
+
+    private static String toSeconds(long nanos) {
+        return Double.toString(nanos / 1_000_000_000.0);
+    }
+
+    /**
+     * A lock-free latency histogram with logarithmic buckets, similar to HdrHistogram.
+     * Each power of two is split into 32 linear sub-buckets, giving about 3% precision
+     * over the whole range of positive long values.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+        private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketIndex(value));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param percentile The percentile between 0 and 1, e.g. 0.99
+         * @return The approximate value at that percentile in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    return Math.min(bucketValue(i), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        private static int bucketIndex(long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+            return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+        }
+
+        // Middle of the value range covered by a bucket
+        private static long bucketValue(int index) {
+            if (index < LINEAR_LIMIT) {
+                return index;
+            }
+            int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+            long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+            return (subBucket << shift) + (1L << (shift - 1));
+        }
+    }
+}
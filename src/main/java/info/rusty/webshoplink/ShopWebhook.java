@@ -0,0 +1,149 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Optional HTTP listener the shop backend calls when a player finalized their cart.
+ * The mod then checks the process out right away, so the confirm prompt appears without the player running /shopFinish.
+ *
+ * The backend sends {@code POST /checkout} with a body like {@code {"uuid": "<process uuid>"}} and the header
+ * {@code X-Webshoplink-Signature: sha256=<hex HMAC-SHA256 of the body, keyed with the process' two-factor code>}.
+ */
+public class ShopWebhook {
+    private static final String SIGNATURE_HEADER = "X-Webshoplink-Signature";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    private static final int MAX_BODY_BYTES = 4096;
+
+    private static HttpServer server;
+    private static ExecutorService handlerExecutor;
+
+    /**
+     * Starts listening if a webhook port is configured
+     */
+    public static synchronized void start() {
+        stop();
+        if (Config.webhookPort == 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(Config.webhookBindAddress, Config.webhookPort), 0);
+        } catch (IOException e) {
+            DebugLogger.logError("Failed to start shop webhook listener on " + Config.webhookBindAddress + ":" + Config.webhookPort, e);
+            return;
+        }
+        handlerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Webhook");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlerExecutor);
+        server.createContext("/checkout", ShopWebhook::handleCheckout);
+        server.start();
+        DebugLogger.log("Listening for shop webhooks on " + Config.webhookBindAddress + ":" + Config.webhookPort, Config.DebugVerbosity.MINIMAL);
+    }
+
+    /**
+     * Stops the listener if it is running
+     */
+    public static synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        handlerExecutor.shutdownNow();
+        server = null;
+        handlerExecutor = null;
+    }
+
+    private static void handleCheckout(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Method not allowed");
+                return;
+            }
+            byte[] body;
+            try (InputStream input = exchange.getRequestBody()) {
+                body = input.readNBytes(MAX_BODY_BYTES + 1);
+            }
+            if (body.length > MAX_BODY_BYTES) {
+                respond(exchange, 413, "Request body too large");
+                return;
+            }
+
+            UUID processId;
+            try {
+                processId = UUID.fromString(JsonParser.parseString(new String(body, StandardCharsets.UTF_8))
+                        .getAsJsonObject().get("uuid").getAsString());
+            } catch (RuntimeException e) {
+                respond(exchange, 400, "Invalid request body");
+                return;
+            }
+
+            // Unknown processes get the same answer as bad signatures, so process ids can't be probed
+            ShopProcess shopProcess = ShopCommands.getActiveShopProcess(processId);
+            if (shopProcess == null || shopProcess.getTwoFactorCode() == null
+                    || !verifySignature(body, shopProcess.getTwoFactorCode(), exchange.getRequestHeaders().getFirst(SIGNATURE_HEADER))) {
+                DebugLogger.log("Rejected shop webhook for process " + processId, Config.DebugVerbosity.DEFAULT);
+                ShopMetrics.increment("webshoplink_webhook_rejected_total");
+                respond(exchange, 401, "Invalid signature");
+                return;
+            }
+
+            ShopMetrics.increment("webshoplink_webhook_accepted_total");
+            boolean prefetched = ShopCommands.prefetchCheckout(shopProcess);
+            respond(exchange, 202, prefetched ? "Checkout started" : "Player is offline");
+        } catch (RuntimeException e) {
+            DebugLogger.logError("Error handling shop webhook", e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Checks the HMAC of a webhook body in constant time
+     * @param body The raw request body
+     * @param twoFactorCode The two-factor code of the process, used as the key
+     * @param signature The signature header, "sha256=" followed by the hex encoded HMAC
+     */
+    static boolean verifySignature(byte[] body, String twoFactorCode, String signature) {
+        if (signature == null || !signature.startsWith(SIGNATURE_PREFIX)) {
+            return false;
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(twoFactorCode.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] expected = mac.doFinal(body);
+            byte[] actual = HexFormat.of().parseHex(signature.substring(SIGNATURE_PREFIX.length()));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = ("{\"message\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package info.rusty.webshoplink;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.rusty.webshoplink.DataTypes.*;
+
+/**
+ * Polls the status of open shop processes and starts the checkout once the web cart is finalized,
+ * for servers that can't receive the {@link ShopWebhook}.
+ *
+ * All processes share one scheduler thread and a bounded number of requests in flight, the rest wait in a queue.
+ * Requests are long-polls, so an idle process costs one held request per {@code statusPollWait} seconds.
+ * If the API answers right away instead of holding the request, or fails, the process backs off exponentially.
+ */
+public class StatusWatcher {
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * The polling state of one shop process
+     */
+    private static class Watch {
+        private final ShopProcess shopProcess;
+        private long backoffMillis = MIN_BACKOFF_MILLIS;
+
+        Watch(ShopProcess shopProcess) {
+            this.shopProcess = shopProcess;
+        }
+    }
+
+    private static final Map<UUID, Watch> WATCHES = new ConcurrentHashMap<>();
+    private static final Queue<Watch> DUE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Starts the scheduler if a status endpoint is configured
+     */
+    public static synchronized void start() {
+        stop();
+        if (Config.shopStatusEndpoint == null || Config.shopStatusEndpoint.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Status");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops polling all processes
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        WATCHES.clear();
+        DUE.clear();
+    }
+
+    /**
+     * @return The number of processes being polled
+     */
+    public static int getWatchCount() {
+        return WATCHES.size();
+    }
+
+    /**
+     * Starts polling a shop process. Does nothing unless polling is enabled.
+     */
+    public static void watch(ShopProcess shopProcess) {
+        if (scheduler == null) {
+            return;
+        }
+        Watch watch = new Watch(shopProcess);
+        if (WATCHES.putIfAbsent(shopProcess.getProcessId(), watch) == null) {
+            enqueue(watch);
+        }
+    }
+
+    /**
+     * Stops polling a shop process, e.g. because its checkout was started another way
+     */
+    public static void unwatch(UUID processId) {
+        WATCHES.remove(processId);
+    }
+
+    private static void enqueue(Watch watch) {
+        DUE.add(watch);
+        execute(StatusWatcher::dispatch);
+    }
+
+    // Runs on the scheduler thread only, so the in-flight check and increment don't race
+    private static void dispatch() {
+        Watch watch;
+        while (IN_FLIGHT.get() < Config.statusPollMaxInFlight && (watch = DUE.poll()) != null) {
+            if (!isCurrent(watch)) {
+                continue;
+            }
+            IN_FLIGHT.incrementAndGet();
+            poll(watch);
+        }
+    }
+
+    private static void poll(Watch watch) {
+        ShopProcess shopProcess = watch.shopProcess;
+        long start = System.nanoTime();
+        ApiService.pollStatus(shopProcess.getProcessId(), shopProcess.getTwoFactorCode(), Config.statusPollWait)
+            .whenComplete((status, error) -> {
+                IN_FLIGHT.decrementAndGet();
+                try {
+                    handle(watch, status, error, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } finally {
+                    execute(StatusWatcher::dispatch);
+                }
+            });
+    }
+
+    private static void handle(Watch watch, String status, Throwable error, long elapsedMillis) {
+        if (!isCurrent(watch)) {
+            return;
+        }
+        UUID processId = watch.shopProcess.getProcessId();
+        if (error != null) {
+            DebugLogger.log("Status poll for process " + processId + " failed, retrying in " + watch.backoffMillis + " ms", Config.DebugVerbosity.ALL);
+            backOff(watch);
+            return;
+        }
+        switch (status) {
+            case "ready" -> {
+                WATCHES.remove(processId, watch);
+                ShopMetrics.increment("webshoplink_status_ready_total");
+                ShopCommands.prefetchCheckout(watch.shopProcess);
+            }
+            case "expired" -> {
+                WATCHES.remove(processId, watch);
+                ShopCommands.expireShopProcess(watch.shopProcess);
+            }
+            case "closed", "cancelled", "applied" -> WATCHES.remove(processId, watch);
+            default -> {
+                if (elapsedMillis >= Config.statusPollWait * 500L) {
+                    // The API held the request, so the next long-poll can follow right away
+                    watch.backoffMillis = MIN_BACKOFF_MILLIS;
+                    enqueue(watch);
+                } else {
+                    backOff(watch);
+                }
+            }
+        }
+    }
+
+    // Waits with jitter, so processes that failed together don't poll together again
+    private static void backOff(Watch watch) {
+        long delay = watch.backoffMillis / 2 + ThreadLocalRandom.current().nextLong(watch.backoffMillis / 2 + 1);
+        watch.backoffMillis = Math.min(MAX_BACKOFF_MILLIS, watch.backoffMillis * 2);
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(() -> enqueue(watch), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime
+        }
+    }
+
+    // A watch is dropped once it was replaced, or its process is no longer active
+    private static boolean isCurrent(Watch watch) {
+        UUID processId = watch.shopProcess.getProcessId();
+        if (WATCHES.get(processId) != watch) {
+            return false;
+        }
+        if (ShopCommands.getActiveShopProcess(processId) != watch.shopProcess) {
+            WATCHES.remove(processId, watch);
+            return false;
+        }
+        return true;
+    }
+
+    private static void execute(Runnable task) {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime
+        }
+    }
+}
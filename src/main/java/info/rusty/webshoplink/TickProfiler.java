@@ -0,0 +1,270 @@
+package info.rusty.webshoplink;
+
+import com.mojang.logging.LogUtils;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures how much of each server tick is spent on shop work.
+ *
+ * Shop work enters the server thread through commands, operations the {@link PlayerMailbox} resumes and
+ * continuations scheduled on the server with {@link #timed}. Only the outermost of these entry points is timed,
+ * so an operation that runs inside its command is not counted twice, and their sum is the shop time of the tick.
+ * Every {@link ShopMetrics.Phase} recorded on the server thread is also added to the current tick and reported
+ * as a breakdown of that time; phases nest, so the breakdown does not add up to the total.
+ * All state is only touched from the server thread, so no synchronization is needed.
+ */
+public class TickProfiler {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final long TICK_NANOS = 50_000_000L;
+    private static final int WINDOW_TICKS = 1200;            // One minute at 20 TPS
+    private static final int WORST_TICK_COUNT = 5;
+    private static final int WARNING_COOLDOWN_TICKS = 200;   // At most one warning every 10 seconds
+    private static final ShopMetrics.Phase[] PHASES = ShopMetrics.Phase.values();
+
+    private static volatile Thread serverThread;
+    private static final long[] currentTick = new long[PHASES.length];
+    private static long currentTotal;
+    private static boolean currentTickUsed;
+    // Number of entry points running on the server thread, only the outermost one adds to the total
+    private static int entryDepth;
+
+    // Rolling window of the last WINDOW_TICKS ticks
+    private static final long[][] window = new long[WINDOW_TICKS][PHASES.length];
+    private static final long[] windowSums = new long[PHASES.length];
+    private static final long[] windowTotals = new long[WINDOW_TICKS];
+    private static long windowTotalSum;
+    private static int windowPosition;
+    private static int windowFilled;
+
+    private static final List<TickSample> worstTicks = new ArrayList<>();
+    private static long tickCounter;
+    private static long lastWarningTick = -WARNING_COOLDOWN_TICKS;
+    private static int suppressedWarnings;
+
+    /**
+     * Shop time and breakdown of a single tick
+     */
+    public record TickSample(long tick, long totalNanos, long[] phaseNanos) {
+    }
+
+    /**
+     * Adds time spent in a phase to the current tick, if called on the server thread
+     * @param phase The phase
+     * @param nanos The duration in nanoseconds
+     */
+    public static void record(ShopMetrics.Phase phase, long nanos) {
+        if (Thread.currentThread() != serverThread) {
+            return;
+        }
+        currentTick[phase.ordinal()] += nanos;
+        currentTickUsed = true;
+    }
+
+    /**
+     * Runs a command as an entry point and records its execution time under {@link ShopMetrics.Phase#COMMAND}
+     * @param command The command to run
+     * @return The command result
+     */
+    public static int timeCommand(IntSupplier command) {
+        long start = System.nanoTime();
+        boolean entry = beginEntry();
+        try {
+            return command.getAsInt();
+        } finally {
+            endEntry(entry, start);
+            ShopMetrics.recordSince(ShopMetrics.Phase.COMMAND, start);
+        }
+    }
+
+    /**
+     * Runs shop work as an entry point, adding its time to the current tick if it runs on the server thread
+     * @param task The work to run
+     */
+    public static void timeEntry(Runnable task) {
+        long start = System.nanoTime();
+        boolean entry = beginEntry();
+        try {
+            task.run();
+        } finally {
+            endEntry(entry, start);
+        }
+    }
+
+    /**
+     * @param executor The server, or another executor that runs tasks on the server thread
+     * @return An executor that runs every task as an entry point, for continuations of shop operations
+     */
+    public static Executor timed(Executor executor) {
+        return task -> executor.execute(() -> timeEntry(task));
+    }
+
+    private static boolean beginEntry() {
+        if (Thread.currentThread() != serverThread) {
+            return false;
+        }
+        entryDepth++;
+        return true;
+    }
+
+    private static void endEntry(boolean entry, long start) {
+        if (!entry) {
+            return;
+        }
+        entryDepth--;
+        if (entryDepth == 0) {
+            currentTotal += System.nanoTime() - start;
+            currentTickUsed = true;
+        }
+    }
+
+    /**
+     * Clears all collected tick data
+     */
+    public static void reset() {
+        Arrays.fill(currentTick, 0);
+        currentTotal = 0;
+        currentTickUsed = false;
+        for (long[] tick : window) {
+            Arrays.fill(tick, 0);
+        }
+        Arrays.fill(windowSums, 0);
+        Arrays.fill(windowTotals, 0);
+        windowTotalSum = 0;
+        windowPosition = 0;
+        windowFilled = 0;
+        worstTicks.clear();
+        tickCounter = 0;
+        lastWarningTick = -WARNING_COOLDOWN_TICKS;
+        suppressedWarnings = 0;
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            serverThread = Thread.currentThread();
+            return;
+        }
+        endTick();
+    }
+
+    private static void endTick() {
+        tickCounter++;
+
+        // Move the finished tick into the rolling window
+        long[] slot = window[windowPosition];
+        for (int i = 0; i < PHASES.length; i++) {
+            windowSums[i] += currentTick[i] - slot[i];
+            slot[i] = currentTick[i];
+        }
+        windowTotalSum += currentTotal - windowTotals[windowPosition];
+        windowTotals[windowPosition] = currentTotal;
+        windowPosition = (windowPosition + 1) % WINDOW_TICKS;
+        windowFilled = Math.min(windowFilled + 1, WINDOW_TICKS);
+
+        if (!currentTickUsed) {
+            return;
+        }
+
+        long total = currentTotal;
+        if (total > 0) {
+            trackWorstTick(total);
+            checkBudget(total);
+        }
+        Arrays.fill(currentTick, 0);
+        currentTotal = 0;
+        currentTickUsed = false;
+    }
+
+    private static void trackWorstTick(long total) {
+        if (worstTicks.size() == WORST_TICK_COUNT && worstTicks.get(WORST_TICK_COUNT - 1).totalNanos() >= total) {
+            return;
+        }
+        TickSample sample = new TickSample(tickCounter, total, currentTick.clone());
+        int index = 0;
+        while (index < worstTicks.size() && worstTicks.get(index).totalNanos() >= total) {
+            index++;
+        }
+        worstTicks.add(index, sample);
+        if (worstTicks.size() > WORST_TICK_COUNT) {
+            worstTicks.remove(WORST_TICK_COUNT);
+        }
+    }
+
+    private static void checkBudget(long total) {
+        if (Config.tickBudgetWarning <= 0 || total * 100.0 / TICK_NANOS < Config.tickBudgetWarning) {
+            return;
+        }
+        if (tickCounter - lastWarningTick < WARNING_COOLDOWN_TICKS) {
+            suppressedWarnings++;
+            return;
+        }
+        ShopMetrics.increment("webshoplink_tick_budget_warnings_total");
+        LOGGER.warn("[Webshoplink] Shop work took {} of the server tick ({}){}",
+                formatShare(total), formatBreakdown(currentTick),
+                suppressedWarnings > 0 ? ", " + suppressedWarnings + " similar ticks since the last warning" : "");
+        lastWarningTick = tickCounter;
+        suppressedWarnings = 0;
+    }
+
+    /**
+     * @return The average shop time per tick over the rolling window, in nanoseconds
+     */
+    public static long getAverageNanos() {
+        return windowFilled == 0 ? 0 : windowTotalSum / windowFilled;
+    }
+
+    /**
+     * @param phase The phase
+     * @return The average time per tick spent in a phase over the rolling window, in nanoseconds
+     */
+    public static long getAverageNanos(ShopMetrics.Phase phase) {
+        return windowFilled == 0 ? 0 : windowSums[phase.ordinal()] / windowFilled;
+    }
+
+    /**
+     * @return The number of ticks in the rolling window
+     */
+    public static int getWindowTicks() {
+        return windowFilled;
+    }
+
+    /**
+     * @return The ticks with the most shop time since the server started, worst first
+     */
+    public static List<TickSample> getWorstTicks() {
+        return List.copyOf(worstTicks);
+    }
+
+    /**
+     * Formats a duration as milliseconds and share of the tick, e.g. "3.20 ms / 6.4%"
+     */
+    public static String formatShare(long nanos) {
+        return String.format("%.2f ms / %.1f%%", nanos / 1_000_000.0, nanos * 100.0 / TICK_NANOS);
+    }
+
+    /**
+     * Formats the per-phase times of a tick, e.g. "command 2.10 ms, capture 0.40 ms"
+     */
+    public static String formatBreakdown(long[] phaseNanos) {
+        StringBuilder builder = new StringBuilder();
+        for (ShopMetrics.Phase phase : PHASES) {
+            long nanos = phaseNanos[phase.ordinal()];
+            if (nanos == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.getLabel()).append(' ').append(String.format("%.2f ms", nanos / 1_000_000.0));
+        }
+        return builder.toString();
+    }
+}
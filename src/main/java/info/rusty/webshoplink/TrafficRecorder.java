@@ -0,0 +1,196 @@
+package info.rusty.webshoplink;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records shop API traffic to a gzip compressed JSON lines file, for replaying production shaped payloads offline.
+ *
+ * Each line holds one exchange with its endpoint, status, duration and the request and response bodies.
+ * Player and process ids are replaced by pseudonyms that are stable for one server run, and verification
+ * codes, links and book authors are blanked, so logs can be shared without identifying players.
+ * Writing happens on a background thread with a bounded queue; exchanges are dropped rather than delaying the mod.
+ */
+public class TrafficRecorder {
+    private static final Gson GSON = new Gson();
+    private static final int QUEUE_SIZE = 1000;
+
+    private static ThreadPoolExecutor writerExecutor;
+    private static Writer writer;
+    private static long writtenBytes;
+    private static long maxBytes;
+    private static byte[] salt;
+
+    /**
+     * Starts recording if enabled in the config. Each start appends a new gzip member to the file.
+     */
+    public static synchronized void start() {
+        stop();
+        if (!Config.recordTraffic) {
+            return;
+        }
+        try {
+            Path file = Path.of(Config.recordTrafficFile);
+            writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            DebugLogger.logError("Failed to open traffic recording " + Config.recordTrafficFile, e);
+            return;
+        }
+        writtenBytes = 0;
+        maxBytes = Config.recordTrafficMaxSize * 1024L * 1024L;
+        salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        writerExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "Webshoplink-Recorder");
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> ShopMetrics.increment("webshoplink_recorder_dropped_total"));
+        DebugLogger.log("Recording shop API traffic to " + Config.recordTrafficFile, Config.DebugVerbosity.MINIMAL);
+    }
+
+    /**
+     * Stops recording and closes the file once all queued exchanges are written
+     */
+    public static synchronized void stop() {
+        if (writerExecutor == null) {
+            return;
+        }
+        writerExecutor.shutdown();
+        try {
+            if (!writerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                writerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            writerExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            DebugLogger.logError("Failed to close traffic recording " + Config.recordTrafficFile, e);
+        }
+        writerExecutor = null;
+        writer = null;
+    }
+
+    public static boolean isRecording() {
+        return writerExecutor != null;
+    }
+
+    /**
+     * Queues an exchange for recording. Does nothing unless recording is enabled.
+     * @param endpoint The endpoint name, e.g. "initiate"
+     * @param processId The shop process, or null for initiate
+     * @param shopSlug The shop slug, or null if unknown
+     * @param startNanos The value of {@link System#nanoTime()} when the request was sent
+     * @param statusCode The HTTP status, 0 if there was no response
+     * @param requestBody The request body
+     * @param responseBody The response body, or null if there was no response
+     */
+    public static void record(String endpoint, UUID processId, String shopSlug, long startNanos, int statusCode, String requestBody, String responseBody) {
+        ThreadPoolExecutor executor = writerExecutor;
+        if (executor == null) {
+            return;
+        }
+        long durationMicros = (System.nanoTime() - startNanos) / 1000;
+        long timestamp = System.currentTimeMillis();
+        executor.execute(() -> write(endpoint, processId, shopSlug, timestamp, durationMicros, statusCode, requestBody, responseBody));
+    }
+
+    private static void write(String endpoint, UUID processId, String shopSlug, long timestamp, long durationMicros,
+                              int statusCode, String requestBody, String responseBody) {
+        if (writtenBytes >= maxBytes) {
+            ShopMetrics.increment("webshoplink_recorder_dropped_total");
+            return;
+        }
+        JsonObject line = new JsonObject();
+        line.addProperty("time", timestamp);
+        line.addProperty("endpoint", endpoint);
+        if (processId != null) {
+            line.addProperty("process", pseudonym(processId.toString()));
+        }
+        if (shopSlug != null) {
+            line.addProperty("shop", shopSlug);
+        }
+        line.addProperty("status", statusCode);
+        line.addProperty("durationMicros", durationMicros);
+        line.add("request", anonymize(parse(requestBody)));
+        if (responseBody != null) {
+            line.add("response", anonymize(parse(responseBody)));
+        }
+
+        String text = GSON.toJson(line) + "\n";
+        try {
+            writer.write(text);
+            writer.flush();
+            writtenBytes += text.length();
+            ShopMetrics.increment("webshoplink_recorder_exchanges_total");
+        } catch (IOException e) {
+            DebugLogger.logError("Failed to write traffic recording " + Config.recordTrafficFile, e);
+            writtenBytes = maxBytes;
+        }
+    }
+
+    private static JsonElement parse(String body) {
+        try {
+            return JsonParser.parseString(body);
+        } catch (RuntimeException e) {
+            // Not JSON, e.g. an HTML error page from a proxy
+            return new JsonPrimitive(body);
+        }
+    }
+
+    private static JsonElement anonymize(JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                JsonElement value = entry.getValue();
+                if (!value.isJsonPrimitive()) {
+                    anonymize(value);
+                    continue;
+                }
+                switch (entry.getKey()) {
+                    case "playerId", "uuid" -> entry.setValue(new JsonPrimitive(pseudonym(value.getAsString())));
+                    case "tfaCode", "twoFactorCode" -> entry.setValue(new JsonPrimitive("000000"));
+                    case "link" -> entry.setValue(new JsonPrimitive("https://shop.invalid/"));
+                    case "author" -> entry.setValue(new JsonPrimitive("Player"));
+                    default -> {
+                    }
+                }
+            }
+        } else if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                anonymize(child);
+            }
+        }
+        return element;
+    }
+
+    // Stable within one recording, so sessions can be followed from initiate to setApplied
+    private static String pseudonym(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] salted = new byte[salt.length + bytes.length];
+        System.arraycopy(salt, 0, salted, 0, salt.length);
+        System.arraycopy(bytes, 0, salted, salt.length, bytes.length);
+        return UUID.nameUUIDFromBytes(salted).toString();
+    }
+}
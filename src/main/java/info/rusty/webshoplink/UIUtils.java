@@ -2,6 +2,8 @@ package info.rusty.webshoplink;
 
 import net.minecraft.ChatFormatting;
 import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.HoverEvent;
+import net.minecraft.network.chat.MutableComponent;
 import net.minecraft.network.chat.Style;
 import net.minecraft.server.level.ServerPlayer;
 
@@ -124,4 +126,46 @@ public class UIUtils {
         player.sendSystemMessage(footerComponent);
         player.sendSystemMessage(spacerComponent);
     }
+
+    /**
+     * Creates a single-line summary of an inventory diff.
+     * Each change shows its count and item name, with the full item id in a hover tooltip.
+     * @param diff The inventory diff to summarize
+     * @return The summary component
+     */
+    public static Component createInventoryDiffComponent(DataTypes.InventoryDiff diff) {
+        MutableComponent component = Component.literal("Changes: ")
+                .withStyle(Style.EMPTY.withColor(ChatFormatting.WHITE));
+        
+        if (diff.isEmpty()) {
+            return component.append(Component.literal("none")
+                    .withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
+        }
+        
+        boolean first = true;
+        for (DataTypes.InventoryChange change : diff.getRemoved()) {
+            if (!first) {
+                component.append(Component.literal(", ").withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
+            }
+            component.append(createInventoryChangeComponent(change, "-", ChatFormatting.RED, "Removed"));
+            first = false;
+        }
+        for (DataTypes.InventoryChange change : diff.getAdded()) {
+            if (!first) {
+                component.append(Component.literal(", ").withStyle(Style.EMPTY.withColor(ChatFormatting.GRAY)));
+            }
+            component.append(createInventoryChangeComponent(change, "+", ChatFormatting.GREEN, "Added"));
+            first = false;
+        }
+        
+        return component;
+    }
+    
+    private static Component createInventoryChangeComponent(DataTypes.InventoryChange change, String prefix, ChatFormatting color, String action) {
+        Component tooltip = Component.literal(action + " " + change.getCount() + "x " + change.getItemId());
+        return Component.literal(prefix + change.getCount() + " " + change.getFormattedName())
+                .withStyle(Style.EMPTY
+                        .withColor(color)
+                        .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, tooltip)));
+    }
 }
@@ -3,6 +3,7 @@ package info.rusty.webshoplink;
 import com.mojang.logging.LogUtils;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.server.ServerStartingEvent;
+import net.minecraftforge.event.server.ServerStoppingEvent;
 import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.eventbus.api.IEventBus;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
@@ -27,6 +28,7 @@ public class Webshoplink {
 
         // Register ourselves for server and other game events we are interested in
         MinecraftForge.EVENT_BUS.register(this);
+        MinecraftForge.EVENT_BUS.register(TickProfiler.class);
 
         // Register our mod's ForgeConfigSpec so that Forge can create and load the config file for us
         ModLoadingContext.get().registerConfig(ModConfig.Type.COMMON, Config.SPEC);
@@ -39,6 +41,28 @@ public class Webshoplink {
     @SubscribeEvent
     public void onServerStarting(ServerStartingEvent event) {
         LOGGER.info("Webshoplink mod loaded on server side");
+        ShopMetrics.startFileDump();
+        ApiService.start();
+        HealthMonitor.start();
+        TickProfiler.reset();
+        TrafficRecorder.start();
+        ShopWebhook.start();
+        StatusWatcher.start();
+        InitiateBatcher.start();
+        NotificationBatcher.start();
+    }
+
+    @SubscribeEvent
+    public void onServerStopping(ServerStoppingEvent event) {
+        ShopMetrics.stopFileDump();
+        TrafficRecorder.stop();
+        ShopWebhook.stop();
+        StatusWatcher.stop();
+        InitiateBatcher.stop();
+        NotificationBatcher.stop();
+        IdempotencyCache.clear();
+        HealthMonitor.stop();
+        ApiService.stop();
     }
 
     @SubscribeEvent
@@ -0,0 +1,77 @@
+package info.rusty.webshoplink;
+
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static info.rusty.webshoplink.DataTypes.*;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Merging a purchase with changes the player made while the shop was open
+ */
+class InventoryMergeTest {
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ECHEST_SIZE = 27;
+    private static final int PAYMENT_SLOT = 0;
+    private static final int PURCHASE_SLOT = 2;
+
+    @BeforeAll
+    static void bootstrap() {
+        BenchmarkCorpus.bootstrap();
+    }
+
+    @Test
+    void movingThePaymentToAnUntouchedSlotIsAConflict() {
+        ItemStack[] original = openedInventory();
+        ItemStack[] current = openedInventory();
+        // Slot 0 now holds what the shop returned for it, but the emeralds are still there
+        current[PAYMENT_SLOT] = null;
+        current[10] = new ItemStack(Items.EMERALD, 32);
+
+        InventoryMerge merge = merge(original, current);
+
+        assertTrue(merge.hasConflicts());
+    }
+
+    @Test
+    void changingAnUntouchedSlotIsNoConflict() {
+        ItemStack[] original = openedInventory();
+        ItemStack[] current = openedInventory();
+        current[10] = new ItemStack(Items.COBBLESTONE, 16);
+
+        InventoryMerge merge = merge(original, current);
+
+        assertFalse(merge.hasConflicts());
+        assertTrue(merge.isInventorySlotTouched(PAYMENT_SLOT));
+        assertFalse(merge.isInventorySlotTouched(10));
+    }
+
+    // The inventory when the shop was opened: the payment, and something the shop leaves alone
+    private static ItemStack[] openedInventory() {
+        ItemStack[] stacks = new ItemStack[INVENTORY_SIZE];
+        stacks[PAYMENT_SLOT] = new ItemStack(Items.EMERALD, 32);
+        stacks[1] = new ItemStack(Items.DIRT, 64);
+        return stacks;
+    }
+
+    // The shop takes the payment and puts a diamond sword into an empty slot
+    private static InventoryMerge merge(ItemStack[] original, ItemStack[] current) {
+        ItemStack[] purchased = openedInventory();
+        purchased[PAYMENT_SLOT] = null;
+        purchased[PURCHASE_SLOT] = new ItemStack(Items.DIAMOND_SWORD);
+        InventoryList result = new InventoryList();
+        result.setInventoryFromPlayer(player(purchased).getInventory());
+
+        InventorySnapshot originalSnapshot = InventoryManager.captureInventory(player(original));
+        InventorySnapshot currentSnapshot = InventoryManager.captureInventory(player(current));
+        return InventoryManager.mergeInventories(originalSnapshot, currentSnapshot, result.getInventoryData(), null, InventoryFilter.ALL);
+    }
+
+    private static ServerPlayer player(ItemStack[] stacks) {
+        return BenchmarkCorpus.createPlayer(stacks, new ItemStack[ECHEST_SIZE]);
+    }
+}